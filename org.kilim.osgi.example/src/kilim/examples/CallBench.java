@@ -0,0 +1,77 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.examples;
+
+import kilim.ExitMsg;
+import kilim.pausable;
+import kilim.fibers.Mailbox;
+import kilim.fibers.Scheduler;
+import kilim.fibers.Task;
+
+/**
+ * Measures the cost of a call to a pausable method that doesn't pause (the
+ * common case), against the same call to a plain method. The pausable
+ * callee is a frame with a pausable call of its own that is never taken,
+ * as in a typical helper. Compare runs of the same classes woven with and
+ * without -Dkilim.weavingOptions=fast-calls.
+ *
+ * [run]     java -cp ./classes:$CLASSPATH  kilim.examples.CallBench [calls]
+ */
+public class CallBench extends Task {
+    final int numCalls;
+
+    CallBench(int numCalls) {
+        this.numCalls = numCalls;
+    }
+
+    public static void main(String[] args) {
+        int numCalls = args.length > 0 ? Integer.parseInt(args[0]) : 100000000;
+        Scheduler scheduler = new Scheduler(1);
+        for (int round = 0; round < 5; round++) {
+            Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+            Task t = new CallBench(numCalls);
+            t.informOnExit(exitmb);
+            t.start(scheduler);
+            exitmb.getb();
+        }
+        scheduler.shutdown();
+    }
+
+    @pausable
+    public void execute() {
+        int n = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < numCalls; i++) {
+            n += plain(i);
+        }
+        long plainNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < numCalls; i++) {
+            n += pausable(i);
+        }
+        long pausableNanos = System.nanoTime() - start;
+        System.out.println("plain: " + plainNanos * 1000 / numCalls
+                + " ps per call, pausable: " + pausableNanos * 1000 / numCalls
+                + " ps per call");
+        if (n == 42) System.out.println(n); // keep the result live
+    }
+
+    int plain(int i) {
+        if (i < 0) {
+            System.out.println(i);
+        }
+        return i & 1;
+    }
+
+    @pausable
+    int pausable(int i) {
+        if (i < 0) {
+            Task.yield();
+        }
+        return i & 1;
+    }
+}
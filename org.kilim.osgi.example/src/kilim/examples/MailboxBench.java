@@ -0,0 +1,134 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.examples;
+
+import kilim.ExitMsg;
+import kilim.pausable;
+import kilim.fibers.LockFreeMailbox;
+import kilim.fibers.Mailbox;
+import kilim.fibers.Scheduler;
+import kilim.fibers.Task;
+
+/**
+ * Measures message wakeups through Mailbox.put/get: a ping-pong pair, and
+ * a fan-in where many producers feed a single consumer. Pass "lockfree" as
+ * the third argument to use LockFreeMailbox instead of Mailbox.
+ *
+ * [compile] javac -d ./classes MailboxBench.java
+ * [weave]   java kilim.tools.Weave -d ./classes kilim.examples.MailboxBench
+ * [run]     java -cp ./classes:$CLASSPATH  kilim.examples.MailboxBench [producers] [messages] [lockfree]
+ */
+public class MailboxBench {
+    static boolean lockFree;
+
+    public static void main(String[] args) {
+        int numProducers = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int numMsgs = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        lockFree = args.length > 2 && args[2].equals("lockfree");
+        Scheduler scheduler = new Scheduler();
+        for (int round = 0; round < 5; round++) {
+            long pingPong = pingPong(scheduler, numMsgs);
+            long fanIn = fanIn(scheduler, numProducers, numMsgs);
+            System.out.println("ping-pong: " + rate(numMsgs, pingPong) + " msgs/s, "
+                    + "fan-in (" + numProducers + " producers): " + rate(numMsgs, fanIn) + " msgs/s");
+        }
+        scheduler.shutdown();
+    }
+
+    static long pingPong(Scheduler scheduler, int numMsgs) {
+        Mailbox<Integer> ping = newMailbox(Integer.MAX_VALUE);
+        Mailbox<Integer> pong = newMailbox(Integer.MAX_VALUE);
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        long start = System.nanoTime();
+        Task last = new Relay(pong, ping, numMsgs / 2);
+        last.informOnExit(exitmb);
+        new Relay(ping, pong, numMsgs / 2).start(scheduler);
+        last.start(scheduler);
+        ping.putnb(0);
+        exitmb.getb();
+        return System.nanoTime() - start;
+    }
+
+    static long fanIn(Scheduler scheduler, int numProducers, int numMsgs) {
+        Mailbox<Integer> mb = newMailbox(1000);
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        int perProducer = numMsgs / numProducers;
+        long start = System.nanoTime();
+        Task consumer = new Consumer(mb, perProducer * numProducers);
+        consumer.informOnExit(exitmb);
+        consumer.start(scheduler);
+        for (int i = 0; i < numProducers; i++) {
+            new Producer(mb, perProducer).start(scheduler);
+        }
+        exitmb.getb();
+        return System.nanoTime() - start;
+    }
+
+    static <T> Mailbox<T> newMailbox(int maxSize) {
+        if (lockFree) {
+            return new LockFreeMailbox<T>(maxSize);
+        }
+        return new Mailbox<T>(Math.min(maxSize, 1000), maxSize);
+    }
+
+    static long rate(int numMsgs, long nanos) {
+        return numMsgs * 1000000000L / Math.max(nanos, 1);
+    }
+
+    static class Relay extends Task {
+        final Mailbox<Integer> in, out;
+        final int n;
+
+        Relay(Mailbox<Integer> in, Mailbox<Integer> out, int n) {
+            this.in = in;
+            this.out = out;
+            this.n = n;
+        }
+
+        @pausable
+        public void execute() {
+            for (int i = 0; i < n; i++) {
+                out.put(in.get() + 1);
+            }
+        }
+    }
+
+    static class Producer extends Task {
+        final Mailbox<Integer> out;
+        final int n;
+
+        Producer(Mailbox<Integer> out, int n) {
+            this.out = out;
+            this.n = n;
+        }
+
+        @pausable
+        public void execute() {
+            Integer msg = Integer.valueOf(id);
+            for (int i = 0; i < n; i++) {
+                out.put(msg);
+            }
+        }
+    }
+
+    static class Consumer extends Task {
+        final Mailbox<Integer> in;
+        final int n;
+
+        Consumer(Mailbox<Integer> in, int n) {
+            this.in = in;
+            this.n = n;
+        }
+
+        @pausable
+        public void execute() {
+            for (int i = 0; i < n; i++) {
+                in.get();
+            }
+        }
+    }
+}
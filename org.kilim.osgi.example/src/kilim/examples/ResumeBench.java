@@ -0,0 +1,74 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.examples;
+
+import java.util.ArrayList;
+
+import kilim.ExitMsg;
+import kilim.pausable;
+import kilim.fibers.Mailbox;
+import kilim.fibers.Scheduler;
+import kilim.fibers.Task;
+
+/**
+ * Measures the cost of pausing and resuming a call chain whose frames keep
+ * references of various types alive across the pause. Each Task.yield()
+ * saves and later restores every frame of the chain, so this mostly
+ * exercises the woven save/restore code. Compare runs of the same classes
+ * woven with different weaving options, e.g. -Dkilim.weavingOptions=exact-states
+ * and/or reuse-states.
+ *
+ * [run]     java -cp ./classes:$CLASSPATH  kilim.examples.ResumeBench [depth] [yields]
+ */
+public class ResumeBench extends Task {
+    final int depth;
+    final int numYields;
+
+    ResumeBench(int depth, int numYields) {
+        this.depth = depth;
+        this.numYields = numYields;
+    }
+
+    public static void main(String[] args) {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int numYields = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        Scheduler scheduler = new Scheduler(1);
+        for (int round = 0; round < 5; round++) {
+            Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+            Task t = new ResumeBench(depth, numYields);
+            t.informOnExit(exitmb);
+            long start = System.nanoTime();
+            t.start(scheduler);
+            exitmb.getb();
+            long nanos = System.nanoTime() - start;
+            System.out.println("depth " + depth + ": " + nanos / numYields
+                    + " ns per yield/resume");
+        }
+        scheduler.shutdown();
+    }
+
+    @pausable
+    public void execute() {
+        int n = 0;
+        for (int i = 0; i < numYields; i++) {
+            n += level(depth, "x", new StringBuilder(), new ArrayList<String>());
+        }
+        if (n < 0) System.out.println(n); // keep the result live
+    }
+
+    @pausable
+    int level(int d, String name, StringBuilder sb, ArrayList<String> list) {
+        if (d == 0) {
+            Task.yield();
+            return name.length();
+        }
+        int[] counts = new int[1];
+        counts[0] = level(d - 1, name, sb, list);
+        // all of the above are live across the call
+        return counts[0] + sb.length() + list.size() + name.length() + d;
+    }
+}
@@ -0,0 +1,191 @@
+package kilim.osgi.examples;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.Assert;
+import kilim.ExitMsg;
+import kilim.analysis.WeavingStats;
+import kilim.fibers.Mailbox;
+import kilim.fibers.Scheduler;
+import kilim.fibers.Task;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+/**
+ * Installs a Kilim-enabled bundle, has one of its classes woven and run,
+ * then uninstalls and refreshes it away, many times over. What the hook
+ * keeps (state classes, class resolvers) and the heap must not grow with
+ * the number of cycles.
+ */
+public class BundleUninstallTest {
+
+	private static final String PROBE = "kilim.osgi.examples.GcProbe";
+
+	private static final int CYCLES = 1000;
+
+	/** Cycles run before the counts to compare with are taken */
+	private static final int WARMUP = 10;
+
+	/** Heap growth tolerated over all cycles; a probe leaked per cycle is more */
+	private static final long MAX_HEAP_GROWTH = 16 << 20;
+
+	@Test
+	public void uninstalledBundlesCanBeCollected() throws Exception {
+		Bundle self = FrameworkUtil.getBundle(getClass());
+		if (self.getState() != Bundle.ACTIVE)
+			self.start();
+		BundleContext context = self.getBundleContext();
+		Assert.assertTrue("the hook reports no stats", WeavingStats
+				.getPendingStateClassCount() >= 0);
+
+		WeakReference<ClassLoader> loader = cycle(context);
+		Assert.assertTrue("the probe bundle's class loader is still reachable",
+				collected(loader));
+
+		for (int i = 1; i < WARMUP; i++)
+			cycle(context);
+		gc();
+		int stateClasses = WeavingStats.getStateClassCount();
+		int pending = WeavingStats.getPendingStateClassCount();
+		int resolvers = WeavingStats.getLiveResolverCount();
+		long heap = usedHeap();
+
+		for (int i = WARMUP; i < CYCLES; i++)
+			loader = cycle(context);
+		Assert.assertTrue("the last probe bundle's class loader is still reachable",
+				collected(loader));
+		Assert.assertTrue("state classes kept grew from " + stateClasses + " to "
+				+ WeavingStats.getStateClassCount(), WeavingStats
+				.getStateClassCount() <= stateClasses);
+		Assert.assertTrue("state classes waiting to be defined grew from "
+				+ pending + " to " + WeavingStats.getPendingStateClassCount(),
+				WeavingStats.getPendingStateClassCount() <= pending);
+		Assert.assertTrue("live resolvers grew from " + resolvers + " to "
+				+ WeavingStats.getLiveResolverCount(), WeavingStats
+				.getLiveResolverCount() <= resolvers);
+		long growth = usedHeap() - heap;
+		Assert.assertTrue("heap grew by " + growth + " bytes over "
+				+ (CYCLES - WARMUP) + " cycles", growth < MAX_HEAP_GROWTH);
+	}
+
+	/**
+	 * Installs the probe bundle, has its class woven, loaded and run, then
+	 * uninstalls and refreshes it.
+	 * 
+	 * @return the probe bundle's class loader
+	 */
+	private WeakReference<ClassLoader> cycle(BundleContext context)
+			throws Exception {
+		int stateClasses = WeavingStats.getStateClassCount();
+		int pending = WeavingStats.getPendingStateClassCount();
+		Bundle probe = context.installBundle("kilim-gc-probe:" + System.nanoTime(),
+				probeBundle());
+		Class<?> probeClass = probe.loadClass(PROBE);
+		// the last cycle's uninstall made the weaver forget the state class
+		Assert.assertTrue("no state class woven for the probe", WeavingStats
+				.getStateClassCount() > stateClasses);
+		Mailbox<ExitMsg> exit = new Mailbox<ExitMsg>();
+		Task task = (Task) probeClass.newInstance();
+		task.informOnExit(exit);
+		task.start(Scheduler.getDefaultScheduler());
+		Assert.assertNotNull("the probe task didn't finish", exit.getb(5000));
+		// its state class has been defined, and needs no bytes any more
+		Assert.assertTrue("state class bytes kept after their class was defined",
+				WeavingStats.getPendingStateClassCount() <= pending);
+		WeakReference<ClassLoader> loader = new WeakReference<ClassLoader>(
+				probeClass.getClassLoader());
+		probe.uninstall();
+		refresh(context, probe);
+		return loader;
+	}
+
+	/** A bundle with the unwoven GcProbe class and nothing else */
+	private InputStream probeBundle() throws Exception {
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.putValue("Manifest-Version", "1.0");
+		attributes.putValue("Bundle-ManifestVersion", "2");
+		attributes.putValue("Bundle-SymbolicName", "kilim.osgi.examples.gcprobe");
+		attributes.putValue("Bundle-Version", "1.0.0");
+		attributes.putValue("Import-Package", "kilim,kilim.fibers");
+		attributes.putValue("Kilim-Enabled", "true");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JarOutputStream jar = new JarOutputStream(bytes, manifest);
+		String entry = PROBE.replace('.', '/') + ".class";
+		jar.putNextEntry(new JarEntry(entry));
+		// read as a resource, so that this bundle never loads (and weaves) it
+		InputStream in = getClass().getClassLoader().getResourceAsStream(entry);
+		try {
+			byte[] buf = new byte[4096];
+			for (int n; (n = in.read(buf)) > 0;)
+				jar.write(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		jar.close();
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+	private static void refresh(BundleContext context, Bundle bundle)
+			throws Exception {
+		final CountDownLatch refreshed = new CountDownLatch(1);
+		FrameworkListener listener = new FrameworkListener() {
+			public void frameworkEvent(FrameworkEvent event) {
+				if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED)
+					refreshed.countDown();
+			}
+		};
+		ServiceReference ref = context.getServiceReference(PackageAdmin.class
+				.getName());
+		context.addFrameworkListener(listener);
+		try {
+			((PackageAdmin) context.getService(ref))
+					.refreshPackages(new Bundle[] { bundle });
+			Assert.assertTrue("refresh timed out", refreshed.await(30,
+					TimeUnit.SECONDS));
+		} finally {
+			context.removeFrameworkListener(listener);
+			context.ungetService(ref);
+		}
+	}
+
+	private static boolean collected(WeakReference<?> ref)
+			throws InterruptedException {
+		for (int i = 0; i < 20 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return ref.get() == null;
+	}
+
+	private static void gc() throws InterruptedException {
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+	}
+
+	/** Heap in use after garbage collection */
+	private static long usedHeap() throws InterruptedException {
+		gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
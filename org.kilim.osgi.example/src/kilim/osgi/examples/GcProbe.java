@@ -0,0 +1,30 @@
+package kilim.osgi.examples;
+
+import java.util.zip.Adler32;
+
+import kilim.pausable;
+import kilim.fibers.Task;
+
+/**
+ * Installed by BundleUninstallTest as a bundle of its own, from the unwoven
+ * bytes of this class. It is never loaded from this bundle, so that the
+ * probe bundle is the only one to weave it.
+ */
+public class GcProbe extends Task {
+
+	@pausable
+	public void execute() {
+		// Adler32: a JDK class that no other woven code refers to, so
+		// that the probe bundle's resolver is the first to summarize it.
+		// The odd mix of locals gives the pause a state class of its own;
+		// they are computed, as constants would not be saved at all.
+		Adler32 sum = new Adler32();
+		sum.update(1);
+		long l1 = sum.getValue(), l2 = l1 + 1, l3 = l2 + 1;
+		float f1 = l1, f2 = l2, f3 = l3, f4 = f3 + 1, f5 = f4 + 1;
+		double d1 = f1, d2 = f2, d3 = f3, d4 = f4;
+		Task.yield();
+		sum.update((int) (f1 + f2 + f3 + f4 + f5 + d1 + d2 + d3 + d4 + l1 + l2 + l3));
+	}
+
+}
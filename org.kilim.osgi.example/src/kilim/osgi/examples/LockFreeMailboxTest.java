@@ -0,0 +1,93 @@
+package kilim.osgi.examples;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+import kilim.fibers.LockFreeMailbox;
+
+import org.junit.Test;
+
+public class LockFreeMailboxTest {
+
+	static class Msg {
+		final int producer;
+		final int seq;
+
+		Msg(int producer, int seq) {
+			this.producer = producer;
+			this.seq = seq;
+		}
+	}
+
+	@Test
+	public void singleProducerIsFifo() {
+		LockFreeMailbox<Msg> mb = new LockFreeMailbox<Msg>();
+		for (int i = 0; i < 100; i++) {
+			Assert.assertTrue(mb.putnb(new Msg(0, i)));
+		}
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals(i, mb.getnb().seq);
+		}
+		Assert.assertNull(mb.getnb());
+		Assert.assertFalse(mb.hasMessage());
+	}
+
+	@Test
+	public void boundedMailboxRefusesWhenFull() {
+		LockFreeMailbox<Msg> mb = new LockFreeMailbox<Msg>(2);
+		Assert.assertTrue(mb.putnb(new Msg(0, 0)));
+		Assert.assertTrue(mb.putnb(new Msg(0, 1)));
+		Assert.assertFalse(mb.hasSpace());
+		Assert.assertFalse(mb.putnb(new Msg(0, 2)));
+		Assert.assertEquals(0, mb.getnb().seq);
+		Assert.assertTrue(mb.putnb(new Msg(0, 3)));
+		Assert.assertEquals(1, mb.getnb().seq);
+		Assert.assertEquals(3, mb.getnb().seq);
+	}
+
+	/**
+	 * Several producers share a small bounded mailbox, so they keep blocking
+	 * on it. The consumer must see every message once, and each producer's
+	 * messages in the order they were put.
+	 */
+	@Test
+	public void producersKeepTheirOrder() throws Exception {
+		final int numProducers = 4;
+		final int perProducer = 50000;
+		final LockFreeMailbox<Msg> mb = new LockFreeMailbox<Msg>(64);
+		for (int p = 0; p < numProducers; p++) {
+			final int producer = p;
+			new Thread() {
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						mb.putb(new Msg(producer, i));
+					}
+				}
+			}.start();
+		}
+		int[] next = new int[numProducers];
+		List<Msg> got = new ArrayList<Msg>();
+		for (int total = 0; total < numProducers * perProducer;) {
+			got.clear();
+			if ((total & 1) == 0) {
+				Msg m = mb.getb(5000);
+				Assert.assertNotNull("timed out after " + total + " messages", m);
+				got.add(m);
+			} else {
+				mb.getAllnb(got, 16);
+			}
+			for (Msg m : got) {
+				Assert.assertEquals("producer " + m.producer, next[m.producer], m.seq);
+				next[m.producer]++;
+			}
+			total += got.size();
+		}
+		int[] expected = new int[numProducers];
+		Arrays.fill(expected, perProducer);
+		Assert.assertTrue(Arrays.equals(expected, next));
+		Assert.assertNull(mb.getnb());
+	}
+
+}
@@ -0,0 +1,138 @@
+package kilim.osgi.examples;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import junit.framework.Assert;
+import kilim.fibers.Scheduler;
+
+import org.junit.Test;
+
+/**
+ * Tests the work-stealing deques through the Scheduler: a worker runs the
+ * tasks it queued itself newest first, and idle workers steal them oldest
+ * first.
+ */
+public class SchedulerTest {
+
+	/** Records the order in which items run, and on which thread */
+	static class Item implements Runnable {
+		final int n;
+		final List<Item> ran;
+		final CountDownLatch done;
+		volatile Thread thread;
+
+		Item(int n, List<Item> ran, CountDownLatch done) {
+			this.n = n;
+			this.ran = ran;
+			this.done = done;
+		}
+
+		public void run() {
+			thread = Thread.currentThread();
+			synchronized (ran) {
+				ran.add(this);
+			}
+			done.countDown();
+		}
+	}
+
+	@Test
+	public void workerRunsItsOwnTasksNewestFirst() throws Exception {
+		final Scheduler s = new Scheduler(1);
+		try {
+			final List<Item> ran = new ArrayList<Item>();
+			final CountDownLatch done = new CountDownLatch(200);
+			s.execute(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 200; i++) { // past the initial size, to grow
+						s.execute(new Item(i, ran, done));
+					}
+				}
+			});
+			Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+			for (int i = 0; i < 200; i++) {
+				Assert.assertEquals(199 - i, ran.get(i).n);
+			}
+		} finally {
+			s.shutdown();
+		}
+	}
+
+	/**
+	 * The worker that queues the items stays busy until they have all run,
+	 * so the other worker has to steal each of them.
+	 */
+	@Test
+	public void idleWorkerStealsOldestFirst() throws Exception {
+		final Scheduler s = new Scheduler(2);
+		try {
+			final List<Item> ran = new ArrayList<Item>();
+			final CountDownLatch done = new CountDownLatch(200);
+			final Thread[] owner = new Thread[1];
+			s.execute(new Runnable() {
+				public void run() {
+					owner[0] = Thread.currentThread();
+					for (int i = 0; i < 200; i++) {
+						s.execute(new Item(i, ran, done));
+					}
+					try {
+						done.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+					}
+				}
+			});
+			Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+			for (int i = 0; i < 200; i++) {
+				Assert.assertEquals(i, ran.get(i).n);
+				Assert.assertNotSame(owner[0], ran.get(i).thread);
+			}
+		} finally {
+			s.shutdown();
+		}
+	}
+
+	/**
+	 * Workers run the tasks they queue while the others steal them; every
+	 * task must run exactly once, in particular the last one of a deque
+	 * that its owner and a thief race for.
+	 */
+	@Test
+	public void eachTaskRunsOnce() throws Exception {
+		final int numPushers = 4;
+		final int perPusher = 50000;
+		final Scheduler s = new Scheduler(4);
+		try {
+			final AtomicIntegerArray runs = new AtomicIntegerArray(numPushers * perPusher);
+			final CountDownLatch done = new CountDownLatch(numPushers * perPusher);
+			for (int p = 0; p < numPushers; p++) {
+				final int first = p * perPusher;
+				s.execute(new Runnable() {
+					public void run() {
+						for (int i = first; i < first + perPusher; i++) {
+							final int n = i;
+							s.execute(new Runnable() {
+								public void run() {
+									runs.incrementAndGet(n);
+									done.countDown();
+								}
+							});
+						}
+					}
+				});
+			}
+			Assert.assertTrue("not all tasks ran", done.await(30, TimeUnit.SECONDS));
+			// give a task run twice the time to show
+			Thread.sleep(100);
+			for (int i = 0; i < numPushers * perPusher; i++) {
+				Assert.assertEquals("task " + i, 1, runs.get(i));
+			}
+		} finally {
+			s.shutdown();
+		}
+	}
+
+}
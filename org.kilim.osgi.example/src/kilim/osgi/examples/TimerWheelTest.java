@@ -0,0 +1,81 @@
+package kilim.osgi.examples;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+import kilim.fibers.Timeout;
+import kilim.fibers.TimerWheel;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+	static class TestTimeout extends Timeout {
+		final long scheduledAt = System.nanoTime();
+		final CountDownLatch fired = new CountDownLatch(1);
+		volatile long firedAt;
+
+		@Override
+		protected void expired() {
+			firedAt = System.nanoTime();
+			fired.countDown();
+		}
+
+		long waitedMillis() {
+			return (firedAt - scheduledAt) / 1000000;
+		}
+	}
+
+	@Test
+	public void timeoutsExpireAfterTheirDelay() throws Exception {
+		// 16 slots of 1ms: the 50ms timeout goes around the wheel thrice
+		TimerWheel wheel = new TimerWheel(1, 16);
+		try {
+			TestTimeout[] ts = new TestTimeout[] { new TestTimeout(), new TestTimeout(),
+					new TestTimeout() };
+			long[] delays = new long[] { 5, 20, 50 };
+			for (int i = 0; i < ts.length; i++) {
+				wheel.schedule(ts[i], delays[i]);
+				Assert.assertTrue(ts[i].isPending());
+			}
+			Assert.assertEquals(3, wheel.getNumPending());
+			for (int i = 0; i < ts.length; i++) {
+				Assert.assertTrue("timeout " + i + " fired", ts[i].fired.await(5, TimeUnit.SECONDS));
+				Assert.assertTrue("timeout " + i + " early: " + ts[i].waitedMillis() + "ms",
+						ts[i].waitedMillis() >= delays[i]);
+				Assert.assertFalse(ts[i].isPending());
+			}
+			Assert.assertTrue(ts[0].firedAt <= ts[1].firedAt && ts[1].firedAt <= ts[2].firedAt);
+			Assert.assertEquals(0, wheel.getNumPending());
+		} finally {
+			wheel.shutdown();
+		}
+	}
+
+	@Test
+	public void cancelledTimeoutsDontExpire() throws Exception {
+		TimerWheel wheel = new TimerWheel(1, 16);
+		try {
+			TestTimeout cancelled = new TestTimeout();
+			TestTimeout kept = new TestTimeout();
+			wheel.schedule(cancelled, 30);
+			wheel.schedule(kept, 30);
+			Assert.assertTrue(cancelled.cancel());
+			Assert.assertFalse(cancelled.isPending());
+			Assert.assertFalse("second cancel", cancelled.cancel());
+			Assert.assertEquals(1, wheel.getNumPending());
+
+			Assert.assertTrue(kept.fired.await(5, TimeUnit.SECONDS));
+			Assert.assertFalse(cancelled.fired.await(100, TimeUnit.MILLISECONDS));
+			Assert.assertFalse("cancel after expiry", kept.cancel());
+
+			// a cancelled timeout may be scheduled again
+			wheel.schedule(cancelled, 1);
+			Assert.assertTrue(cancelled.fired.await(5, TimeUnit.SECONDS));
+		} finally {
+			wheel.shutdown();
+		}
+	}
+
+}
@@ -47,11 +47,36 @@ public final class Fiber {
     private State[]            stateStack              = new State[10];
 
     /*
-     * Index into stateStack and equal to depth of call hierarchy - 1
+     * States handed back by resumed frames woven with the reuse-states
+     * option, one per depth, waiting to be refilled by the next frame that
+     * pauses at that depth. See keepState() and spareState().
      */
-    private int                iStack                  = -1;
+    private State[]            spareStack              = new State[10];
 
-    boolean                    isPausing;
+    /*
+     * One State per depth for frames that pause with nothing to save but
+     * their pc and self, such as a pausable call in tail position. A depth
+     * has at most one paused frame, so its tail state is free again once
+     * that frame has been restored, when its self is dropped. See
+     * setTailState() and releaseTail().
+     */
+    private State[]            tailStack               = new State[10];
+
+    /*
+     * Index into stateStack and equal to depth of call hierarchy - 1.
+     * Read by generated code that needs upEx(int), and updated by code
+     * woven with the fast-calls option in place of down() and up(), hence
+     * public. That code doesn't grow stateStack, so iStack may be beyond
+     * its end; the stack is grown when a state is stored that deep.
+     */
+    public int                 iStack                  = -1;
+
+    /*
+     * Set from setState() until the pausing fiber is resumed. Read by code
+     * woven with the fast-calls option, to leave a call without up() if
+     * nothing is pausing (and the frame has no state to restore).
+     */
+    public boolean             isPausing;
     
     boolean                    isDone;
 
@@ -139,17 +164,17 @@ public final class Fiber {
     public int up() {
         int d = iStack;
         iStack = --d;
+        State[] stack = stateStack;
         if (isPausing) {
 //            if (debug) System.out.println("\nup(pausing)" + this);;
 //            if (debug) ds();
-            return (stateStack[d] == null) ? PAUSING__NO_STATE
+            return (d >= stack.length || stack[d] == null) ? PAUSING__NO_STATE
                     : PAUSING__HAS_STATE;
             // not setting curState because the generated code is only
             // interested in knowing whether we have state or not.
         } else {
             // move up to caller's level
-            State[] stack = stateStack;
-            State cs = curState = stack[d];
+            State cs = curState = (d < stack.length) ? stack[d] : null;
             if (cs == null) {
                 pc = 0;
 //                if (debug) System.out.println("\nup(not pausing)" + this);;
@@ -157,6 +182,7 @@ public final class Fiber {
                 return NOT_PAUSING__NO_STATE;
             } else {
                 stack[d] = null; // clean up
+                releaseTail(cs, d);
                 pc = cs.pc;
 //                if (debug) System.out.println("\nup(not pausing)" + this);;
 //                if (debug) ds();
@@ -179,6 +205,7 @@ public final class Fiber {
         
         if (isDone) {
             // clean up callee's state
+            releaseTail(stateStack[0], 0);
             stateStack[0] = null;
         }
         // reset pausing for next round.
@@ -228,7 +255,29 @@ public final class Fiber {
      * In the normal (non-exception) scheme of things, the iStack is incremented
      * by down() on the way down and decremented by a corresponding up() when returning 
      * or pausing. If, however, an exception is thrown, we lose track of where we
-     * are in the hierarchy. We recalibrate iStack by creating a dummy exception
+     * are in the hierarchy. The weaver records iStack in a local on entry to
+     * any method with a pausable call inside a try block, and the catch
+     * handler hands it back to us. 
+     * @return Fiber.pc (note: in contrast up() returns status)
+     */
+    public int upEx(int depth) {
+        State[] stack = stateStack;
+        if (depth >= stack.length) {
+            stack = ensureSize(depth * 2);
+        }
+        State cs = stack[depth];
+        for (int i = Math.min(iStack, stack.length - 1); i >= depth; i--) {
+            releaseTail(stack[i], i);
+            stack[i] = null; // release state
+        }
+        iStack = depth;
+        curState = cs;
+        return (cs == null) ? 0 : cs.pc;
+    }
+
+    /**
+     * Used by code woven before upEx(int) existed, and much slower: we
+     * recalibrate iStack by creating a dummy exception
      * and comparing it to the stack depth of an exception taken earlier.
      * This is done in scheduler.getStackDepth();
      * A sample stack trace of the dummy exception looks as follows
@@ -250,9 +299,13 @@ public final class Fiber {
     public int upEx() {
         // compute new iStack. 
         int is = task.getStackDepth() - 2; // remove upEx and convert to 0-based index. 
+        if (is >= stateStack.length) {
+            ensureSize(is * 2);
+        }
         State cs = stateStack[is];
 
-        for (int i = iStack; i >= is; i--) {
+        for (int i = Math.min(iStack, stateStack.length - 1); i >= is; i--) {
+            releaseTail(stateStack[i], i);
             stateStack[i] = null; // release state
         }
 
@@ -276,9 +329,47 @@ public final class Fiber {
         State[] newStack = new State[newsize];
         System.arraycopy(stateStack, 0, newStack, 0, stateStack.length);
         stateStack = newStack;
+        State[] newSpares = new State[newsize];
+        System.arraycopy(spareStack, 0, newSpares, 0, spareStack.length);
+        spareStack = newSpares;
+        State[] newTails = new State[newsize];
+        System.arraycopy(tailStack, 0, newTails, 0, tailStack.length);
+        tailStack = newTails;
         return newStack;
     }
 
+    /**
+     * Called by code woven with the reuse-states option once it has restored
+     * its frame from curState after up(). The state is no longer referenced
+     * by stateStack, so it is kept for the next pause at this depth.
+     */
+    public void keepState() {
+        State cs = curState;
+        if (cs != PAUSE_STATE) {
+            spareStack[iStack] = cs;
+        }
+    }
+
+    /**
+     * Called by code woven with the reuse-states option when it needs a
+     * State to save its frame in.
+     * @return the state kept at this depth by keepState(), or null. The
+     * caller must check its class; the frame that kept it may have belonged
+     * to a different method.
+     */
+    public State spareState() {
+        State[] spares = spareStack;
+        int d = iStack;
+        if (d >= spares.length) {
+            return null;
+        }
+        State s = spares[d];
+        if (s != null) {
+            spares[d] = null;
+        }
+        return s;
+    }
+
     /**
      * Called by the generated code before pausing and unwinding its stack
      * frame.
@@ -286,11 +377,49 @@ public final class Fiber {
      * @param state
      */
     public void setState(State state) {
-        stateStack[iStack] = state;
+        int d = iStack;
+        if (d >= stateStack.length) {
+            ensureSize(d * 2);
+        }
+        stateStack[d] = state;
         isPausing = true;
 //        System.out.println("setState[" + + iStack + "] = " + this);
     }
 
+    /**
+     * Called by the generated code instead of setState() when the frame has
+     * nothing to save but its pc (and this, in instance methods), typically
+     * at a pausable call in tail position. Refills this depth's own State
+     * rather than taking a new one. The state's self is dropped when the
+     * frame is restored, see releaseTail().
+     */
+    public void setTailState(Object self, int pc) {
+        int d = iStack;
+        if (d >= stateStack.length) {
+            ensureSize(d * 2);
+        }
+        State s = tailStack[d];
+        if (s == null) {
+            s = tailStack[d] = new State();
+        }
+        s.self = self;
+        s.pc = pc;
+        stateStack[d] = s;
+        isPausing = true;
+    }
+
+    /**
+     * Called where the state s of depth d is restored or released. If s is
+     * that depth's tail state, drops its reference to self, so that the
+     * State kept in tailStack doesn't hold on to an object that the task
+     * no longer uses.
+     */
+    private void releaseTail(State s, int d) {
+        if (s != null && s == tailStack[d]) {
+            s.self = null;
+        }
+    }
+
     void togglePause() {
         // The client code would have called fiber.down()
         // before calling Task.pause. curStatus would be
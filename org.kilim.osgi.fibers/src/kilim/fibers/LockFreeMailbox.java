@@ -0,0 +1,246 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.fibers;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A Mailbox that never takes a lock. Messages go through a linked
+ * multi-producer/single-consumer queue: producers swap themselves in at
+ * the tail with one atomic exchange, and the (single) consumer unlinks from
+ * the head without any atomic operation. A bounded size is enforced with
+ * a CAS-reserved counter, and the waiting consumer is published through a
+ * volatile sink field that producers clear with a CAS when they wake it.
+ *
+ * The API and semantics are those of Mailbox, so hot mailboxes can be
+ * switched over one at a time by constructing a LockFreeMailbox instead.
+ */
+public class LockFreeMailbox<T> extends Mailbox<T> {
+    private final int maxSize;
+
+    /** Consumer side. head is a dummy node; the first message is head.next */
+    private Node<T>   head;
+
+    private volatile Node<T> tail;
+
+    /** Number of messages enqueued or reserved by a producer in progress */
+    private volatile int size = 0;
+
+    private volatile MsgAvListener waitingConsumer;
+
+    private final ConcurrentLinkedQueue<SpcAvListener> waitingProducers =
+        new ConcurrentLinkedQueue<SpcAvListener>();
+
+    // newUpdater() only takes raw class literals; the casts below give the
+    // updaters their real type arguments once, here.
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static final AtomicReferenceFieldUpdater<LockFreeMailbox<?>, Node<?>> tailUpdater =
+        (AtomicReferenceFieldUpdater) AtomicReferenceFieldUpdater.newUpdater(LockFreeMailbox.class, Node.class, "tail");
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static final AtomicIntegerFieldUpdater<LockFreeMailbox<?>> sizeUpdater =
+        (AtomicIntegerFieldUpdater) AtomicIntegerFieldUpdater.newUpdater(LockFreeMailbox.class, "size");
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static final AtomicReferenceFieldUpdater<LockFreeMailbox<?>, MsgAvListener> consumerUpdater =
+        (AtomicReferenceFieldUpdater) AtomicReferenceFieldUpdater.newUpdater(LockFreeMailbox.class, MsgAvListener.class, "waitingConsumer");
+
+    public LockFreeMailbox() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public LockFreeMailbox(int maxSize) {
+        super(0, maxSize);
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("maxSize: " + maxSize);
+        this.maxSize = maxSize;
+        head = tail = new Node<T>(null);
+    }
+
+    @Override
+    boolean enq(T msg) {
+        if (msg == null) {
+            throw new NullPointerException("Null message supplied to put");
+        }
+        int n;
+        do {
+            n = size;
+            if (n >= maxSize) {
+                return false;
+            }
+        } while (!sizeUpdater.compareAndSet(this, n, n + 1));
+
+        Node<T> node = new Node<T>(msg);
+        Node<T> prev = swapTail(node);
+        // Between the exchange and this store the consumer sees the
+        // queue end at prev; the message becomes visible right after.
+        prev.next = node;
+        return true;
+    }
+
+    @Override
+    T deq() {
+        Node<T> h = head;
+        Node<T> first = h.next;
+        if (first == null) {
+            return null;
+        }
+        T msg = first.msg;
+        first.msg = null; // first becomes the new dummy
+        head = first;
+        sizeUpdater.decrementAndGet(this);
+        return msg;
+    }
+
+    /**
+     * Reserves room for the whole batch with one CAS and links it in with
+     * one exchange.
+     */
+    @Override
+    int enqAll(T first, Iterator<? extends T> rest, int count) {
+        if (first == null) {
+            throw new NullPointerException("Null message supplied to put");
+        }
+        int n, k;
+        do {
+            n = size;
+            k = Math.min(count, maxSize - n);
+            if (k <= 0) {
+                return 0;
+            }
+        } while (!sizeUpdater.compareAndSet(this, n, n + k));
+
+        Node<T> firstNode = new Node<T>(first);
+        Node<T> last = firstNode;
+        int linked = 1;
+        try {
+            for (; linked < k; linked++) {
+                Node<T> node = new Node<T>(rest.next());
+                last.next = node;
+                last = node;
+            }
+        } finally {
+            if (linked < k) {
+                // give back the unused reservations; queue what we have
+                sizeUpdater.addAndGet(this, linked - k);
+            }
+            Node<T> prev = swapTail(last);
+            prev.next = firstNode;
+        }
+        return k;
+    }
+
+    /** Makes node the new tail and returns the old one */
+    @SuppressWarnings("unchecked")
+    private Node<T> swapTail(Node<T> node) {
+        // only this mailbox's own Node<T>s are ever stored in tail
+        return (Node<T>) tailUpdater.getAndSet(this, node);
+    }
+
+    /**
+     * Unlinks up to max messages, adjusting the size only once.
+     */
+    @Override
+    int deqAll(Collection<? super T> into, int max) {
+        Node<T> h = head;
+        int n = 0;
+        try {
+            Node<T> first;
+            while (n < max && (first = h.next) != null) {
+                T msg = first.msg;
+                first.msg = null;
+                head = h = first;
+                n++;
+                into.add(msg);
+            }
+        } finally {
+            if (n > 0) {
+                sizeUpdater.addAndGet(this, -n);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * True if a message is ready for the consumer. A message whose producer
+     * is still linking it in counts only once it has been linked.
+     */
+    @Override
+    public boolean hasMessage() {
+        return head.next != null;
+    }
+
+    @Override
+    public boolean hasSpace() {
+        return size < maxSize;
+    }
+
+    @Override
+    public void addSpaceAvailableListener(SpcAvListener spcOb) {
+        waitingProducers.add(spcOb);
+    }
+
+    @Override
+    public void removeSpaceAvailableListener(SpcAvListener spcOb) {
+        waitingProducers.remove(spcOb);
+    }
+
+    @Override
+    public void addMsgAvailableListener(MsgAvListener msgOb) {
+        if (!consumerUpdater.compareAndSet(this, null, msgOb)) {
+            throw new AssertionError(
+                    "Error: A mailbox can not be shared by two consumers. New = "
+                            + msgOb + ", existing = " + waitingConsumer);
+        }
+    }
+
+    @Override
+    public void removeMsgAvailableListener(MsgAvListener msgOb) {
+        consumerUpdater.compareAndSet(this, msgOb, null);
+    }
+
+    @Override
+    void notifySpaceAvailable(int n) {
+        for (int i = 0; i < n && size < maxSize; i++) {
+            SpcAvListener src = waitingProducers.poll();
+            if (src == null)
+                return;
+            src.spaceAvailable(this);
+        }
+    }
+
+    @Override
+    void notifyMsgAvailable() {
+        // The consumer registers before its final emptiness check and we
+        // link the message before reading the sink, so one of the two
+        // always sees the other.
+        MsgAvListener snk = waitingConsumer;
+        if (snk == null || !hasMessage())
+            return;
+        if (consumerUpdater.compareAndSet(this, snk, null)) {
+            snk.msgAvailable(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "id:" + System.identityHashCode(this) + " " + "numMsgs:" + size;
+    }
+
+    static final class Node<T> {
+        volatile Node<T> next;
+        T                msg;
+
+        Node(T msg) {
+            this.msg = msg;
+        }
+    }
+}
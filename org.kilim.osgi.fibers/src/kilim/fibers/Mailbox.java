@@ -6,6 +6,8 @@
 
 package kilim.fibers;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedList;
 
 import kilim.pausable;
@@ -19,6 +21,11 @@ import kilim.pausable;
  * We use the term "block" to mean thread block, and "pause" to mean
  * fiber pausing. The suffix "nb" on some methods (such as getnb())
  * stands for non-blocking.
+ * 
+ * This implementation guards a ring buffer with the mailbox's monitor.
+ * {@link LockFreeMailbox} has the same API without locks; subclasses
+ * replace enq(), deq(), enqAll(), deqAll(), hasMessage(), hasSpace(), the
+ * listener methods and the notify methods.
  */
 
 public class Mailbox<T> {
@@ -31,6 +38,14 @@ public class Mailbox<T> {
     MsgAvListener sink;
     LinkedList<SpcAvListener> srcs = new LinkedList<SpcAvListener>();
 
+    /*
+     * The consumer's pause reasons, reused from one pause to the next so
+     * that a task sitting in a get() loop doesn't allocate them per message.
+     * Only the (single) consumer touches these.
+     */
+    private Empty_MsgAvListener consumerListener;
+    private Timed_MsgAvListener timedListener;
+
     // DEBUG stuff
     // To do: move into monitorable stat object
     /*
@@ -42,7 +57,7 @@ public class Mailbox<T> {
     }
 
     public Mailbox(int initialSize) {
-        this(10, Integer.MAX_VALUE);
+        this(initialSize, Integer.MAX_VALUE);
     }
 
     @SuppressWarnings("unchecked")
@@ -71,8 +86,7 @@ public class Mailbox<T> {
     public T get() {
         T msg = deq();
         while (msg == null) {
-            Task t = Task.getCurrentTask();
-            Empty_MsgAvListener pauseReason = new Empty_MsgAvListener(t, this);
+            Empty_MsgAvListener pauseReason = emptyListener(Task.getCurrentTask());
             addMsgAvailableListener(pauseReason);
             // The task will have to reevaluate the reason for pausing before it
             // changes
@@ -85,22 +99,122 @@ public class Mailbox<T> {
         return msg;
     }
 
+    /**
+     * Moves up to max messages into the given collection, pausing until
+     * there is at least one. The messages are taken in one go, and waiting
+     * producers are notified once for the whole batch.
+     * 
+     * @return the number of messages added (at least 1).
+     */
+    @pausable
+    public int getAll(Collection<? super T> into, int max) {
+        if (max <= 0)
+            throw new IllegalArgumentException("max: " + max);
+        int n = deqAll(into, max);
+        while (n == 0) {
+            Empty_MsgAvListener pauseReason = emptyListener(Task.getCurrentTask());
+            addMsgAvailableListener(pauseReason);
+            Task.pause(pauseReason);
+            removeMsgAvailableListener(pauseReason);
+            n = deqAll(into, max);
+        }
+        notifySpaceAvailable(n);
+        return n;
+    }
+
+    /**
+     * Moves up to max messages into the given collection, without pausing
+     * or blocking.
+     * 
+     * @return the number of messages added.
+     */
+    public int getAllnb(Collection<? super T> into, int max) {
+        int n = deqAll(into, max);
+        if (n > 0) {
+            notifySpaceAvailable(n);
+        }
+        return n;
+    }
+
+    /**
+     * Puts all the messages in order, pausing whenever the mailbox is full.
+     * Messages are enqueued as many at a time as there is space for, and
+     * the consumer is notified once per such batch. A null in the batch
+     * is refused before any message is put.
+     */
+    @pausable
+    public void putAll(Collection<? extends T> batch) {
+        int remaining = batch.size();
+        if (remaining == 0)
+            return;
+        for (T msg : batch) {
+            if (msg == null) {
+                throw new NullPointerException("Null message supplied to putAll");
+            }
+        }
+        Iterator<? extends T> it = batch.iterator();
+        T next = it.next();
+        while (true) {
+            int n = enqAll(next, it, remaining);
+            if (n > 0) {
+                notifyMsgAvailable();
+                remaining -= n;
+                if (remaining == 0)
+                    break;
+                next = it.next();
+            } else {
+                Full_SpcAvListener pauseReason = Task.getCurrentTask().fullListener(this);
+                addSpaceAvailableListener(pauseReason);
+                Task.pause(pauseReason);
+                removeSpaceAvailableListener(pauseReason);
+            }
+        }
+    }
+
+    /**
+     * Like get(), but gives up after the given time.
+     * 
+     * @return the message, or null if none arrived in time.
+     */
+    @pausable
+    public T get(long timeoutMillis) {
+        T msg = deq();
+        if (msg == null) {
+            Task t = Task.getCurrentTask();
+            Timed_MsgAvListener pauseReason = timedListener;
+            if (pauseReason == null || pauseReason.task != t) {
+                timedListener = pauseReason = new Timed_MsgAvListener(t, this);
+            }
+            t.getTimerWheel().schedule(pauseReason, timeoutMillis);
+            while (msg == null) {
+                addMsgAvailableListener(pauseReason);
+                Task.pause(pauseReason);
+                removeMsgAvailableListener(pauseReason);
+                msg = deq();
+                if (msg == null && !pauseReason.isPending()) {
+                    return null; // timed out
+                }
+            }
+            pauseReason.cancel();
+        }
+        notifySpaceAvailable();
+        return msg;
+    }
+
     /**
      * Takes an array of mailboxes and returns the index of the first mailbox
      * that has a message. It is possible that because of race conditions, an
      * earlier mailbox in the list may also have received a message.
      */
     @pausable
-    public static int select(Mailbox... mboxes) {
+    public static int select(Mailbox<?>... mboxes) {
         while (true) {
             for (int i = 0; i < mboxes.length; i++) {
                 if (mboxes[i].hasMessage()) {
                     return i;
                 }
             }
-            Task t = Task.getCurrentTask();
-            EmptySet_MsgAvListener pauseReason = new EmptySet_MsgAvListener(t,
-                    mboxes);
+            EmptySet_MsgAvListener pauseReason = Task.getCurrentTask().selectListener(mboxes);
             for (int i = 0; i < mboxes.length; i++) {
                 mboxes[i].addMsgAvailableListener(pauseReason);
             }
@@ -111,6 +225,14 @@ public class Mailbox<T> {
         }
     }
 
+    private Empty_MsgAvListener emptyListener(Task t) {
+        Empty_MsgAvListener l = consumerListener;
+        if (l == null || l.task != t) {
+            consumerListener = l = new Empty_MsgAvListener(t, this);
+        }
+        return l;
+    }
+
     public synchronized void addSpaceAvailableListener(SpcAvListener spcOb) {
         srcs.add(spcOb);
     }
@@ -123,8 +245,7 @@ public class Mailbox<T> {
         if (sink != null) {
             throw new AssertionError(
                     "Error: A mailbox can not be shared by two consumers. New = "
-                            + ((Empty_MsgAvListener) msgOb).task
-                            + ((Empty_MsgAvListener) sink).task);
+                            + msgOb + ", existing = " + sink);
         }
         sink = msgOb;
     }
@@ -135,22 +256,44 @@ public class Mailbox<T> {
         }
     }
 
-    private void notifySpaceAvailable() {
-        SpcAvListener src;
+    void notifySpaceAvailable() {
+        notifySpaceAvailable(1);
+    }
+
+    /**
+     * Wakes up to n waiting producers, after n messages have been taken.
+     * The producers are picked under one lock, and woken outside it.
+     */
+    void notifySpaceAvailable(int n) {
+        SpcAvListener first;
+        SpcAvListener[] more = null;
         synchronized (this) {
             // Ensure there is some space before notifying the spc listeners
             // The mbox may have filled up between put calling enq() and this
             // method. This reduces the number of false starts.
-            if ((maxMsgs - numMsgs) == 0)
+            int space = maxMsgs - numMsgs;
+            if (space == 0)
+                return;
+            first = srcs.poll();
+            if (first == null)
                 return;
-            src = srcs.poll();
+            int k = Math.min(Math.min(n, space), srcs.size() + 1) - 1;
+            if (k > 0) {
+                more = new SpcAvListener[k];
+                for (int i = 0; i < k; i++) {
+                    more[i] = srcs.poll();
+                }
+            }
         }
-        if (src != null) {
-            src.spaceAvailable(this);
+        first.spaceAvailable(this);
+        if (more != null) {
+            for (SpcAvListener src : more) {
+                src.spaceAvailable(this);
+            }
         }
     }
 
-    private void notifyMsgAvailable() {
+    void notifyMsgAvailable() {
         MsgAvListener snk;
         synchronized (this) {
             snk = sink;
@@ -176,6 +319,51 @@ public class Mailbox<T> {
         return msg;
     }
 
+    /**
+     * Moves up to max messages into the given collection. They are copied
+     * out under the lock and added after it is released, so the
+     * collection's add() never runs while producers are held up.
+     * @return the number of messages moved
+     */
+    @SuppressWarnings("unchecked")
+    int deqAll(Collection<? super T> into, int max) {
+        Object[] taken;
+        synchronized (this) {
+            int n = Math.min(max, numMsgs);
+            if (n <= 0)
+                return 0;
+            taken = new Object[n];
+            int ic = icons;
+            for (int i = 0; i < n; i++) {
+                taken[i] = msgs[ic];
+                ic = (ic + 1) % msgs.length;
+            }
+            icons = ic;
+            numMsgs -= n;
+        }
+        for (Object msg : taken) {
+            into.add((T) msg);
+        }
+        return taken.length;
+    }
+
+    /**
+     * Enqueues first, then further messages from rest, as long as there
+     * is space, up to count messages in all. A message is taken from rest
+     * only if there is room for it.
+     * @return the number of messages enqueued, 0 if first didn't fit.
+     */
+    synchronized int enqAll(T first, Iterator<? extends T> rest, int count) {
+        if (!enq(first))
+            return 0;
+        int n = 1;
+        while (n < count && (maxMsgs - numMsgs) > 0) {
+            enq(rest.next());
+            n++;
+        }
+        return n;
+    }
+
     public boolean putnb(T msg) {
         if (enq(msg)) {
             notifyMsgAvailable();
@@ -188,7 +376,7 @@ public class Mailbox<T> {
     public void put(T msg) {
         Task t = Task.getCurrentTask();
         while (!enq(msg)) {
-            Full_SpcAvListener pauseReason = new Full_SpcAvListener(t, this);
+            Full_SpcAvListener pauseReason = t.fullListener(this);
             addSpaceAvailableListener(pauseReason);
             Task.pause(pauseReason);
             removeSpaceAvailableListener(pauseReason);
@@ -212,18 +400,25 @@ public class Mailbox<T> {
                     break;
 
                 listener = new SpcAvListener() {
-                    public void spaceAvailable(Mailbox MB) {
+                    public void spaceAvailable(Mailbox<?> mb) {
                         synchronized (Mailbox.this) {
                             Mailbox.this.notify();
                         }
                     }
                 };
                 addSpaceAvailableListener(listener);
-                try {
-                    wait(remaining);
-                } catch (InterruptedException ignore) {
+                // enq() needn't hold this monitor (see LockFreeMailbox), so
+                // retry once the listener is in place.
+                enqueued = enq(msg);
+                if (!enqueued) {
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException ignore) {
+                    }
                 }
                 removeSpaceAvailableListener(listener);
+                if (enqueued)
+                    break;
 
                 if (millis != 0) {
                     // Check for spurious breaks
@@ -244,7 +439,7 @@ public class Mailbox<T> {
      * returns true if able to enq in a ring buffer.
      */
     @SuppressWarnings("unchecked")
-    private synchronized boolean enq(T msg) {
+    synchronized boolean enq(T msg) {
         if (msg == null) {
             throw new NullPointerException("Null message supplied to put");
         }
@@ -310,18 +505,26 @@ public class Mailbox<T> {
                     break;
                 }
                 listener = new MsgAvListener() {
-                    public void msgAvailable(Mailbox MB) {
+                    public void msgAvailable(Mailbox<?> mb) {
                         synchronized (Mailbox.this) {
                             Mailbox.this.notify();
                         }
                     }
                 };
                 addMsgAvailableListener(listener);
-                try {
-                    wait(remaining);
-                } catch (InterruptedException ignore) {
+                // deq() needn't hold this monitor (see LockFreeMailbox), so
+                // check again once the listener is in place.
+                msg = deq();
+                if (msg == null) {
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException ignore) {
+                    }
                 }
                 removeMsgAvailableListener(listener);
+                if (msg != null) {
+                    break;
+                }
 
                 if (millis != 0) {
                     // Check for spurious breaks
@@ -347,96 +550,129 @@ public class Mailbox<T> {
                 // "nWastedGets:" + nWastedGets + " " +
                 "numMsgs:" + numMsgs;
     }
-}
 
-class Empty_MsgAvListener implements PauseReason, MsgAvListener {
-    final Task task;
-    final Mailbox mbx;
+    static final class Empty_MsgAvListener implements PauseReason, MsgAvListener {
+        final Task task;
+        final Mailbox<?> mbx;
 
-    // DEBUG
-    // boolean notified = false;
+        // DEBUG
+        // boolean notified = false;
 
-    Empty_MsgAvListener(Task t, Mailbox mb) {
-        task = t;
-        mbx = mb;
-    }
+        Empty_MsgAvListener(Task t, Mailbox<?> mb) {
+            task = t;
+            mbx = mb;
+        }
 
-    public boolean isValid() {
-        // The pauseReason is "Empty" if the mbox has no message
-        return !mbx.hasMessage();
-    }
+        public boolean isValid() {
+            // The pauseReason is "Empty" if the mbox has no message
+            return !mbx.hasMessage();
+        }
 
-    public void msgAvailable(Mailbox mb) {
-        // DEBUG notified = true;
-        task.resume();
-    }
+        public void msgAvailable(Mailbox<?> mb) {
+            // DEBUG notified = true;
+            task.resume();
+        }
 
-    public String toString() {
-        return " Waiting for msg = " + isValid()
-        // + ", notified: " + notified
-        ;
-    }
+        public String toString() {
+            return " Waiting for msg = " + isValid()
+            // + ", notified: " + notified
+            ;
+        }
+
+        public void cancel() {
+            mbx.removeMsgAvailableListener(this);
+        }
 
-    public void cancel() {
-        mbx.removeMsgAvailableListener(this);
     }
 
-}
+    static final class Timed_MsgAvListener extends Timeout implements PauseReason, MsgAvListener {
+        final Task task;
+        final Mailbox<?> mbx;
 
-class Full_SpcAvListener implements PauseReason, SpcAvListener {
-    final Task task;
-    final Mailbox mbx;
+        Timed_MsgAvListener(Task t, Mailbox<?> mb) {
+            task = t;
+            mbx = mb;
+        }
 
-    Full_SpcAvListener(Task t, Mailbox mb) {
-        task = t;
-        mbx = mb;
-    }
+        public boolean isValid() {
+            // Keep waiting while the mbox is empty and there is time left
+            return !mbx.hasMessage() && isPending();
+        }
 
-    public boolean isValid() {
-        // The pauseReason is "Full" if the mbox has no space available
-        return !mbx.hasSpace();
-    }
+        public void msgAvailable(Mailbox<?> mb) {
+            task.resume();
+        }
 
-    public void spaceAvailable(Mailbox mb) {
-        task.resume();
-    }
+        protected void expired() {
+            task.resume();
+        }
 
-    public void cancel() {
-        mbx.removeSpaceAvailableListener(this);
+        public String toString() {
+            return " Waiting for msg with timeout = " + isValid();
+        }
     }
-}
 
-class EmptySet_MsgAvListener implements PauseReason, MsgAvListener {
-    final Task task;
-    final Mailbox[] mbxs;
+    /*
+     * Each task keeps one of these, and points it at whichever mailbox it is
+     * waiting to put into. A notification from a mailbox the task has
+     * stopped waiting on only causes a spurious resume.
+     */
+    static final class Full_SpcAvListener implements PauseReason, SpcAvListener {
+        final Task task;
+        Mailbox<?> mbx;
 
-    EmptySet_MsgAvListener(Task t, Mailbox[] mbs) {
-        task = t;
-        mbxs = mbs;
-    }
+        Full_SpcAvListener(Task t, Mailbox<?> mb) {
+            task = t;
+            mbx = mb;
+        }
 
-    public boolean isValid() {
-        // The pauseReason is "Empty" if the none of the mboxes have any
-        // elements
-        for (Mailbox mb : mbxs) {
-            if (mb.hasMessage())
-                return false;
+        public boolean isValid() {
+            // The pauseReason is "Full" if the mbox has no space available
+            return !mbx.hasSpace();
+        }
+
+        public void spaceAvailable(Mailbox<?> mb) {
+            task.resume();
+        }
+
+        public void cancel() {
+            mbx.removeSpaceAvailableListener(this);
         }
-        return true;
     }
 
-    public void msgAvailable(Mailbox mb) {
-        task.resume();
-        for (Mailbox m : mbxs) {
-            if (m != mb) {
-                mb.removeMsgAvailableListener(this);
+    /*
+     * Kept per task, like Full_SpcAvListener, and pointed at the mailboxes of
+     * the current select().
+     */
+    static final class EmptySet_MsgAvListener implements PauseReason, MsgAvListener {
+        final Task task;
+        Mailbox<?>[] mbxs;
+
+        EmptySet_MsgAvListener(Task t, Mailbox<?>[] mbs) {
+            task = t;
+            mbxs = mbs;
+        }
+
+        public boolean isValid() {
+            // The pauseReason is "Empty" if the none of the mboxes have any
+            // elements
+            for (Mailbox<?> mb : mbxs) {
+                if (mb.hasMessage())
+                    return false;
             }
+            return true;
         }
-    }
 
-    public void cancel() {
-        for (Mailbox mb : mbxs) {
-            mb.removeMsgAvailableListener(this);
+        public void msgAvailable(Mailbox<?> mb) {
+            // select() unregisters from the other mailboxes once resumed. Doing
+            // it here could unregister a later select() reusing this listener.
+            task.resume();
+        }
+
+        public void cancel() {
+            for (Mailbox<?> mb : mbxs) {
+                mb.removeMsgAvailableListener(this);
+            }
         }
     }
 }
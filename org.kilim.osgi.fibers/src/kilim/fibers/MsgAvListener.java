@@ -10,5 +10,5 @@ package kilim.fibers;
  * @see kilim.Mailbox
  */
 public interface MsgAvListener {
-    void msgAvailable(Mailbox MB);
+    void msgAvailable(Mailbox<?> mb);
 }
@@ -0,0 +1,186 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.fibers;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * A work-stealing executor for tasks. Pass it to {@link Task#start(Executor)};
+ * tasks started from within a task with {@link Task#start()} inherit it.
+ *
+ * Each WorkerThread owns a deque. A task resumed from a worker thread (the
+ * common case: a put() waking up the consumer) is pushed onto that worker's
+ * deque and is the next one it runs, so a pair of tasks ping-ponging
+ * messages stays on one core. Tasks resumed from other threads go to a
+ * shared queue. Idle workers steal the oldest task from a randomly chosen
+ * peer before going to sleep.
+ */
+public class Scheduler implements Executor {
+    private static Scheduler defaultScheduler;
+
+    final WorkerThread[]     workers;
+
+    /** Tasks resumed from threads that don't belong to this scheduler */
+    final ConcurrentLinkedQueue<Runnable> injectQueue = new ConcurrentLinkedQueue<Runnable>();
+
+    private final Object     idleLock = new Object();
+    private volatile int     numIdle  = 0;
+    private volatile boolean shutdown = false;
+
+    private TimerWheel       timerWheel;
+
+    /**
+     * Creates a scheduler with one worker per available processor.
+     */
+    public Scheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public Scheduler(int numThreads) {
+        if (numThreads < 1)
+            throw new IllegalArgumentException("numThreads: " + numThreads);
+        workers = new WorkerThread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            workers[i] = new WorkerThread(this, "KilimWorker-" + i);
+        }
+        for (WorkerThread w : workers) {
+            w.start();
+        }
+    }
+
+    /**
+     * @return a process-wide scheduler, created on first use.
+     */
+    public static synchronized Scheduler getDefaultScheduler() {
+        if (defaultScheduler == null) {
+            defaultScheduler = new Scheduler();
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * @return the wheel used for Task.sleep and other timeouts of tasks
+     * run by this scheduler, created on first use.
+     */
+    public synchronized TimerWheel getTimerWheel() {
+        if (timerWheel == null) {
+            timerWheel = new TimerWheel();
+        }
+        return timerWheel;
+    }
+
+    public int getNumThreads() {
+        return workers.length;
+    }
+
+    public void execute(Runnable r) {
+        if (r == null)
+            throw new NullPointerException("task is null");
+        Thread t = Thread.currentThread();
+        if (t instanceof WorkerThread && ((WorkerThread) t).scheduler == this) {
+            TaskDeque dq = ((WorkerThread) t).deque;
+            dq.push(r);
+            // The pushing worker may stay busy with its current task for a
+            // long time, so a parked worker gets the chance to steal r.
+            if (numIdle > 0) {
+                wakeOne();
+            }
+        } else {
+            injectQueue.offer(r);
+            if (numIdle > 0) {
+                wakeOne();
+            }
+        }
+    }
+
+    /**
+     * Like execute(), but r goes behind everything already queued, even
+     * when called from a worker: the worker's own deque runs first, then
+     * the shared queue, in order. Used for tasks that yield, so that they
+     * let the others run.
+     */
+    public void executeLater(Runnable r) {
+        if (r == null)
+            throw new NullPointerException("task is null");
+        injectQueue.offer(r);
+        if (numIdle > 0) {
+            wakeOne();
+        }
+    }
+
+    /**
+     * Stops all workers once they finish their current task. Queued tasks
+     * are not run.
+     */
+    public void shutdown() {
+        shutdown = true;
+        synchronized (idleLock) {
+            idleLock.notifyAll();
+        }
+        synchronized (this) {
+            if (timerWheel != null) {
+                timerWheel.shutdown();
+            }
+        }
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    Runnable steal(WorkerThread thief) {
+        WorkerThread[] ws = workers;
+        int n = ws.length;
+        if (n == 1) return null;
+        // Two passes: a steal can fail because of contention even though
+        // the victim's deque isn't empty.
+        for (int pass = 0; pass < 2; pass++) {
+            int start = thief.nextRandom(n);
+            for (int i = 0; i < n; i++) {
+                WorkerThread victim = ws[(start + i) % n];
+                if (victim == thief) continue;
+                Runnable r = victim.deque.steal();
+                if (r != null) return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parks the calling worker until there is work anywhere in the
+     * scheduler. numIdle is raised before the final check for work, and
+     * execute() reads numIdle after queueing, so a wakeup can't be lost.
+     */
+    void idle() {
+        synchronized (idleLock) {
+            numIdle++;
+            try {
+                while (!shutdown && !hasWork()) {
+                    idleLock.wait();
+                }
+            } catch (InterruptedException ignore) {
+            } finally {
+                numIdle--;
+            }
+        }
+    }
+
+    private void wakeOne() {
+        synchronized (idleLock) {
+            idleLock.notify();
+        }
+    }
+
+    private boolean hasWork() {
+        if (!injectQueue.isEmpty()) return true;
+        for (WorkerThread w : workers) {
+            if (!w.deque.isEmpty()) return true;
+        }
+        return false;
+    }
+}
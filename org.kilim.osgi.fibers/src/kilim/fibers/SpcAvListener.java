@@ -7,5 +7,5 @@
 package kilim.fibers;
 
 public interface SpcAvListener {
-    void spaceAvailable(Mailbox mb);
+    void spaceAvailable(Mailbox<?> mb);
 }
@@ -6,10 +6,10 @@
 
 package kilim.fibers;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.lang.management.ManagementFactory;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import kilim.ExitMsg;
 import kilim.pausable;
@@ -43,13 +43,27 @@ public abstract class Task implements Runnable {
     protected PauseReason      pauseReason;
     
     /**
-     * running = true when it is put on the schdulers run Q (by Task.resume()). 
-     * The Task.runExecute() method is called at some point; 'running' remains 
-     * true until the end of runExecute (where it is reset), at which point a 
-     * fresh decision is made whether the task needs to continue running.
+     * The run state moves IDLE -> SCHEDULED when resume() hands the task
+     * to the executor, SCHEDULED -> RUNNING when run() starts, and back to
+     * IDLE (or to DONE) at the end of run(), at which point a fresh
+     * decision is made whether the task needs to continue running. 
+     * Resumes that arrive while the task is SCHEDULED are dropped; one that
+     * arrives while it is RUNNING moves it to RESUMED, so that run() goes
+     * round again rather than lose a notification the pause reason can no
+     * longer show (a listener already taken off its wait list, say). All
+     * transitions are made with a CAS, so concurrent resumers never block
+     * each other.
      */
-    boolean  running = false;
-    boolean  done = false;
+    static final int IDLE      = 0;
+    static final int SCHEDULED = 1;
+    static final int RUNNING   = 2;
+    static final int DONE      = 3;
+    static final int RESUMED   = 4;
+
+    private volatile int runState = IDLE;
+
+    private static final AtomicIntegerFieldUpdater<Task> runStateUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(Task.class, "runState");
 
     /**
      * @see #informOnExit(Mailbox)
@@ -62,8 +76,53 @@ public abstract class Task implements Runnable {
      */
     protected Executor executor;
 
-    // TODO: move into a separate timer service or into the schduler.
-    final static Timer timer = new Timer(true);
+    /**
+     * Reused by every call to sleep(); a task sleeps at most once at a time.
+     */
+    private SleepTimeout sleepTimeout;
+
+    /**
+     * Pause reasons for a full Mailbox.put() and for Mailbox.select(),
+     * reused across pauses. See fullListener() and selectListener().
+     */
+    private Mailbox.Full_SpcAvListener     fullListener;
+    private Mailbox.EmptySet_MsgAvListener selectListener;
+
+    /**
+     * Loop iterations run since the task was last resumed, counted by code
+     * woven with the yield-loops option. See loopBudgetSpent(int).
+     */
+    private int loopCount;
+
+    /**
+     * Time a task may run between resumes before isOverBudget() says so:
+     * the kilim.timeBudget system property, in microseconds, or 10ms.
+     */
+    public static final long DEFAULT_TIME_BUDGET_NANOS =
+        Long.getLong("kilim.timeBudget", 10000L) * 1000L;
+
+    /**
+     * Whether run() also measures the CPU time of each run: set the
+     * kilim.cpuTime system property to true. Reading a thread's CPU time is
+     * a system call, where the wall clock is only a few nanoseconds.
+     */
+    static final boolean       CPU_TIME = Boolean.getBoolean("kilim.cpuTime")
+            && ManagementFactory.getThreadMXBean().isCurrentThreadCpuTimeSupported();
+
+    private long               timeBudgetNanos = DEFAULT_TIME_BUDGET_NANOS;
+
+    /*
+     * Run time accounting, written by the thread running the task at the
+     * start and end of each run() and readable from any thread. runStart
+     * is the System.nanoTime() at the start of the current run, 0 if the
+     * task isn't running.
+     */
+    private volatile long      runStart;
+    private long               runStartCpu;
+    private volatile long      lastRunNanos;
+    private volatile long      totalRunNanos;
+    private volatile long      totalCpuNanos;
+    private volatile int       numRuns;
 
     public Task() {
 		id = idSource.incrementAndGet();
@@ -76,6 +135,8 @@ public abstract class Task implements Runnable {
     
     /**
      * Used to start the task; the task doesn't resume on its own.
+     * Any Executor will do; a {@link Scheduler} keeps tasks that wake
+     * each other up on the same worker thread.
      */
     public Task start(Executor executor) {
         if (executor == null)
@@ -104,9 +165,9 @@ public abstract class Task implements Runnable {
     }
     
     /**
-     * The generated code calls Fiber.upEx, which in turn calls
-     * this to find out out where the current method is w.r.t
-     * the closest _runExecute method. 
+     * Fiber.upEx() calls this to find out out where the current method
+     * is w.r.t the closest _runExecute method. Code woven by this version
+     * of the weaver tracks its depth instead and calls Fiber.upEx(int).
      * @return the number of stack frames above _runExecute(), not including
      * this method
      */
@@ -130,22 +191,75 @@ public abstract class Task implements Runnable {
     public void resume() {
         if (executor == null) return;
         
-        boolean doSchedule = false;
         // We don't check pauseReason while resuming (to verify whether
         // it is worth returning to a pause state. The code at the top of stack 
         // will be doing that anyway.
-        synchronized(this) {
-            if (done) return;
-            if (running) {
+        while (true) {
+            int s = runState;
+            if (s == IDLE) {
+                if (runStateUpdater.compareAndSet(this, IDLE, SCHEDULED)) {
+                    executor.execute(this);
+                    return;
+                }
+            } else if (s == RUNNING) {
+                if (runStateUpdater.compareAndSet(this, RUNNING, RESUMED)) {
+                    return;
+                }
+            } else {
                 return;
             }
-            running = doSchedule = true;
-        }
-        if (doSchedule) {
-            executor.execute(this);
         }
     }
     
+    /**
+     * resume() for a task that has yielded: on a {@link Scheduler}, the
+     * task waits behind the tasks already queued instead of running next.
+     */
+    private void resumeLater() {
+        Executor ex = executor;
+        if (ex == null) return;
+        if (runState == IDLE && runStateUpdater.compareAndSet(this, IDLE, SCHEDULED)) {
+            if (ex instanceof Scheduler) {
+                ((Scheduler) ex).executeLater(this);
+            } else {
+                ex.execute(this);
+            }
+        }
+    }
+
+    /**
+     * @return the timer wheel for this task's timeouts: the scheduler's
+     * own if the task runs on a {@link Scheduler}, the shared default wheel
+     * otherwise.
+     */
+    public TimerWheel getTimerWheel() {
+        Executor ex = executor;
+        if (ex instanceof Scheduler) {
+            return ((Scheduler) ex).getTimerWheel();
+        }
+        return TimerWheel.getDefaultTimerWheel();
+    }
+
+    final Mailbox.Full_SpcAvListener fullListener(Mailbox<?> mb) {
+        Mailbox.Full_SpcAvListener l = fullListener;
+        if (l == null) {
+            fullListener = l = new Mailbox.Full_SpcAvListener(this, mb);
+        } else {
+            l.mbx = mb;
+        }
+        return l;
+    }
+
+    final Mailbox.EmptySet_MsgAvListener selectListener(Mailbox<?>[] mbs) {
+        Mailbox.EmptySet_MsgAvListener l = selectListener;
+        if (l == null) {
+            selectListener = l = new Mailbox.EmptySet_MsgAvListener(this, mbs);
+        } else {
+            l.mbxs = mbs;
+        }
+        return l;
+    }
+
     public void informOnExit(Mailbox<ExitMsg> exit) {
         exitMB = exit;
     }
@@ -208,15 +322,112 @@ public abstract class Task implements Runnable {
      * doesn't hog the java thread.
      */
     @pausable
-    public static void sleep(final long millis) {
-        // create a temp mailbox, and wait on it.
-        final Mailbox<Integer> sleepmb = new Mailbox<Integer>();
-        timer.schedule(new TimerTask() {
-            public void run() {
-                sleepmb.putnb(0);
-            }
-        }, millis);
-        sleepmb.get(); // block until a message posted
+    public static void sleep(long millis) {
+        Task t = getCurrentTask();
+        SleepTimeout st = t.sleepTimeout;
+        if (st == null) {
+            st = t.sleepTimeout = new SleepTimeout(t);
+        }
+        t.getTimerWheel().schedule(st, millis);
+        while (st.isValid()) {
+            pause(st);
+        }
+    }
+
+    /**
+     * Called on every loop iteration by code woven with the yield-loops
+     * option, which calls yield() if it returns true:
+     * <pre>
+     *     if (Task.getCurrentTask().loopBudgetSpent(budget)) Task.yield();
+     * </pre>
+     * The budget comes from the bundle's Kilim-Options header.
+     * @return true if the task has run budget loop iterations since it was
+     * resumed or last told so, or (checked every 1024 iterations) it is
+     * over its time budget
+     */
+    public final boolean loopBudgetSpent(int budget) {
+        int n = ++loopCount;
+        if (n < budget) {
+            // check the time budget too, now and then
+            return (n & 1023) == 0 && isOverBudget();
+        }
+        loopCount = 0;
+        return true;
+    }
+
+    /**
+     * @return true if the current run of the task has lasted longer than its
+     * time budget. Meant to be called by the task itself; see
+     * yieldIfOverBudget().
+     */
+    public boolean isOverBudget() {
+        long start = runStart;
+        return start != 0 && System.nanoTime() - start > timeBudgetNanos;
+    }
+
+    /**
+     * Yields if the current task has used up its time budget for this run
+     * (see setTimeBudget(long)), for hot loops that should share the thread
+     * without pausing on every iteration.
+     */
+    @pausable
+    public static void yieldIfOverBudget() {
+        if (getCurrentTask().isOverBudget()) {
+            Task.yield();
+        }
+    }
+
+    public long getTimeBudget() {
+        return timeBudgetNanos;
+    }
+
+    /**
+     * @param nanos how long a run of this task may last before
+     * isOverBudget() is true
+     */
+    public void setTimeBudget(long nanos) {
+        if (nanos <= 0)
+            throw new IllegalArgumentException("nanos: " + nanos);
+        timeBudgetNanos = nanos;
+    }
+
+    /**
+     * @return the time the current run has lasted so far, or 0 if the task
+     * isn't running
+     */
+    public long getRunNanos() {
+        long start = runStart;
+        return start == 0 ? 0 : System.nanoTime() - start;
+    }
+
+    /**
+     * @return the wall clock time of the last complete run
+     */
+    public long getLastRunNanos() {
+        return lastRunNanos;
+    }
+
+    /**
+     * @return the wall clock time of all complete runs of this task
+     */
+    public long getTotalRunNanos() {
+        return totalRunNanos;
+    }
+
+    /**
+     * @return the CPU time of all complete runs of this task, or 0 unless
+     * the kilim.cpuTime system property is true
+     */
+    public long getTotalCpuNanos() {
+        return totalCpuNanos;
+    }
+
+    /**
+     * @return the number of complete runs, that is, of times the task has
+     * been resumed (including its start)
+     */
+    public int getNumRuns() {
+        return numRuns;
     }
 
     /**
@@ -266,15 +477,23 @@ public abstract class Task implements Runnable {
     }
 
     public String toString() {
-        return "" + id + "(running=" + running + ",pr=" + pauseReason+")";
+        return "" + id + "(state=" + stateName(runState) + ",pr=" + pauseReason+")";
     }
     
     public String dump() {
-        synchronized(this) {
-            return "" + id + 
-            "(running=" + running + 
-            ", pr=" + pauseReason +
-            ")";
+        return "" + id + 
+        "(state=" + stateName(runState) + 
+        ", pr=" + pauseReason +
+        ")";
+    }
+
+    private static String stateName(int state) {
+        switch (state) {
+            case IDLE:      return "idle";
+            case SCHEDULED: return "scheduled";
+            case RUNNING:   return "running";
+            case RESUMED:   return "resumed";
+            default:        return "done";
         }
     }
 
@@ -287,8 +506,8 @@ public abstract class Task implements Runnable {
     }
 
     
-    public synchronized boolean isDone() {
-        return done;
+    public boolean isDone() {
+        return runState == DONE;
     }
     
     /**
@@ -299,6 +518,13 @@ public abstract class Task implements Runnable {
     public void run() {
         Fiber f = fiber;
         boolean isDone = false; 
+        runState = RUNNING;
+        loopCount = 0;
+        if (CPU_TIME) {
+            runStartCpu = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+        }
+        long start = System.nanoTime();
+        runStart = start == 0 ? 1 : start;
         try {
              // start execute. fiber is wound to the beginning.
             execute(f.begin());
@@ -312,8 +538,19 @@ public abstract class Task implements Runnable {
             setPauseReason(new TaskDoneReason(th));
             isDone = true;
         }
+        // account for the run before anyone can resume the task again
+        long nanos = System.nanoTime() - start;
+        runStart = 0;
+        lastRunNanos = nanos;
+        totalRunNanos += nanos;
+        if (CPU_TIME) {
+            totalCpuNanos += ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime()
+                    - runStartCpu;
+        }
+        numRuns++;
 
         if (isDone) {
+            runState = DONE;
             // inform on exit
             if (exitMB != null) {
                 Object exitMsg = "OK";
@@ -323,15 +560,21 @@ public abstract class Task implements Runnable {
                 exitMB.putnb(new ExitMsg(id, exitMsg));
             }
         } else {
-            synchronized (this) {
-                running = false;
+            // Read the reason before going idle: once idle, the task may be
+            // resumed and run (and change its pauseReason) on another thread.
+            PauseReason pr = pauseReason;
+            boolean resumed = !runStateUpdater.compareAndSet(this, RUNNING, IDLE);
+            if (resumed) {
+                runState = IDLE;
             }
             
             // The task has been in "running" mode until now, and may have missed
             // notifications to the pauseReason object (that is, it would have
-            // resisted calls to resume(). If the pauseReason is not valid any
-            // more, we'll resume. 
-            if (!pauseReason.isValid()) {
+            // resisted calls to resume(). If it was resumed meanwhile, or the
+            // pauseReason is not valid any more, we'll resume. 
+            if (pr == yieldReason) {
+                resumeLater();
+            } else if (resumed || !pr.isValid()) {
                 resume();
             }
         }
@@ -348,3 +591,26 @@ public abstract class Task implements Runnable {
     }
 }
 
+/**
+ * The pause reason of a sleeping task. The timer wheel resumes the task
+ * directly when the deadline passes.
+ */
+class SleepTimeout extends Timeout implements PauseReason {
+    final Task task;
+
+    SleepTimeout(Task t) {
+        task = t;
+    }
+
+    public boolean isValid() {
+        return isPending();
+    }
+
+    protected void expired() {
+        task.resume();
+    }
+
+    public String toString() {
+        return " Sleeping = " + isValid();
+    }
+}
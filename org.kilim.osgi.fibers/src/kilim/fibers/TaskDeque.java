@@ -0,0 +1,109 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.fibers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A work-stealing deque in the style of Chase and Lev. The owning worker
+ * pushes and pops at the bottom (LIFO); other workers steal from the top
+ * (FIFO). Only the owner may call push() and pop(); steal() may be called
+ * from any thread.
+ *
+ * The owner's operations touch no lock and, except when competing with a
+ * thief for the very last element, no CAS.
+ */
+final class TaskDeque {
+    private static final int INITIAL_SIZE = 64; // must be a power of 2
+
+    private volatile AtomicReferenceArray<Runnable> array =
+        new AtomicReferenceArray<Runnable>(INITIAL_SIZE);
+
+    /** Next slot to push into. Written only by the owner. */
+    private volatile long bottom = 0;
+
+    /** Next slot to steal from. Advanced by CAS. */
+    private final AtomicLong top = new AtomicLong(0);
+
+    void push(Runnable r) {
+        long b = bottom;
+        long t = top.get();
+        AtomicReferenceArray<Runnable> a = array;
+        if (b - t >= a.length() - 1) {
+            a = grow(a, b, t);
+        }
+        a.set((int) b & (a.length() - 1), r);
+        bottom = b + 1;
+    }
+
+    /**
+     * @return the most recently pushed element, or null if empty.
+     */
+    Runnable pop() {
+        long b = bottom - 1;
+        AtomicReferenceArray<Runnable> a = array;
+        bottom = b;
+        long t = top.get();
+        if (b < t) {
+            // empty
+            bottom = t;
+            return null;
+        }
+        int i = (int) b & (a.length() - 1);
+        Runnable r = a.get(i);
+        if (b > t) {
+            // more than one element; no thief can reach slot b
+            a.set(i, null);
+            return r;
+        }
+        // Last element. Race the thieves for it.
+        if (top.compareAndSet(t, t + 1)) {
+            a.set(i, null);
+        } else {
+            r = null;
+        }
+        bottom = t + 1;
+        return r;
+    }
+
+    /**
+     * @return the oldest element, or null if the deque is empty or
+     * another thread won the race for it.
+     */
+    Runnable steal() {
+        long t = top.get();
+        long b = bottom;
+        if (t >= b) return null;
+        AtomicReferenceArray<Runnable> a = array;
+        Runnable r = a.get((int) t & (a.length() - 1));
+        // A thief must not clear the slot; the owner may already have
+        // wrapped around and reused it.
+        if (!top.compareAndSet(t, t + 1)) return null;
+        return r;
+    }
+
+    boolean isEmpty() {
+        return bottom <= top.get();
+    }
+
+    int size() {
+        long n = bottom - top.get();
+        return n < 0 ? 0 : (int) n;
+    }
+
+    private AtomicReferenceArray<Runnable> grow(AtomicReferenceArray<Runnable> a, long b, long t) {
+        int oldMask = a.length() - 1;
+        AtomicReferenceArray<Runnable> na = new AtomicReferenceArray<Runnable>(a.length() * 2);
+        int newMask = na.length() - 1;
+        for (long i = t; i < b; i++) {
+            na.set((int) i & newMask, a.get((int) i & oldMask));
+        }
+        array = na;
+        return na;
+    }
+}
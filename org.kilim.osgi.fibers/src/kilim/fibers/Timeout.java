@@ -0,0 +1,51 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.fibers;
+
+/**
+ * An entry in a {@link TimerWheel}. Subclasses say what happens when the
+ * deadline passes; typically they resume a task that paused with the
+ * timeout (or an object wrapping it) as its PauseReason.
+ *
+ * A Timeout may be scheduled again once it has expired or been cancelled,
+ * which lets a task reuse one instance for all its sleeps. It belongs to
+ * one wheel at a time.
+ */
+public abstract class Timeout {
+    volatile TimerWheel wheel;
+    // The rest is guarded by the wheel's lock.
+    Timeout    prev, next;
+    long       deadlineTick;
+    boolean    pending;
+
+    /**
+     * Called on the wheel's timer thread once the deadline has passed.
+     * Must not block; resuming a task is the expected thing to do.
+     */
+    protected abstract void expired();
+
+    /**
+     * @return true if scheduled and neither expired nor cancelled.
+     */
+    public boolean isPending() {
+        TimerWheel w = wheel;
+        if (w == null) return false;
+        synchronized (w) {
+            return pending;
+        }
+    }
+
+    /**
+     * Removes this timeout from its wheel.
+     * @return true if it was still pending; false if it had already
+     * expired, been cancelled or was never scheduled.
+     */
+    public boolean cancel() {
+        TimerWheel w = wheel;
+        return w != null && w.cancel(this);
+    }
+}
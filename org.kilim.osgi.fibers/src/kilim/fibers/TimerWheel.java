@@ -0,0 +1,205 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.fibers;
+
+import java.util.ArrayList;
+
+/**
+ * A hashed timer wheel. Time is divided into ticks; a {@link Timeout} due at
+ * tick T hangs off slot (T mod wheel size) in a doubly linked list, so
+ * schedule and cancel are O(1) regardless of how many timeouts are pending.
+ * A single daemon thread advances the wheel once per tick, collects every
+ * due timeout in one pass over the lock and fires them outside it. Entries
+ * due more than one revolution away simply stay in their slot until their
+ * tick comes round.
+ *
+ * Each {@link Scheduler} owns a wheel; tasks on other executors share
+ * {@link #getDefaultTimerWheel()}.
+ */
+public class TimerWheel {
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    public static final int  DEFAULT_WHEEL_SIZE  = 512;   // power of 2
+
+    private static TimerWheel defaultTimerWheel;
+
+    private final long      tickNanos;
+    private final long      startNanos;
+    private final Timeout[] slots;   // sentinel heads of circular lists
+    private final int       mask;
+
+    // guarded by this
+    private long            currentTick = 0; // all ticks <= currentTick are done
+    private int             numPending  = 0;
+    private boolean         shutdown    = false;
+
+    public TimerWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param wheelSize number of slots, rounded up to a power of 2
+     */
+    public TimerWheel(long tickMillis, int wheelSize) {
+        if (tickMillis <= 0)
+            throw new IllegalArgumentException("tickMillis: " + tickMillis);
+        int n = 1;
+        while (n < wheelSize) n <<= 1;
+        slots = new Timeout[n];
+        for (int i = 0; i < n; i++) {
+            Timeout head = new Sentinel();
+            head.prev = head.next = head;
+            slots[i] = head;
+        }
+        mask = n - 1;
+        tickNanos = tickMillis * 1000000L;
+        startNanos = System.nanoTime();
+
+        Thread ticker = new Thread("KilimTimer") {
+            public void run() {
+                runTicker();
+            }
+        };
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    public static synchronized TimerWheel getDefaultTimerWheel() {
+        if (defaultTimerWheel == null) {
+            defaultTimerWheel = new TimerWheel();
+        }
+        return defaultTimerWheel;
+    }
+
+    /**
+     * Arranges for t.expired() to be called after (at least) the given
+     * delay, and at most a tick or so later.
+     * @throws IllegalStateException if t is already pending.
+     */
+    public synchronized void schedule(Timeout t, long delayMillis) {
+        if (t.pending)
+            throw new IllegalStateException("Timeout already scheduled");
+        if (shutdown)
+            throw new IllegalStateException("TimerWheel has been shut down");
+        long now = nowTick();
+        if (numPending == 0) {
+            // Nothing to catch up with; the ticker may have been asleep
+            currentTick = Math.max(currentTick, now);
+        }
+        long delayTicks = (Math.max(delayMillis, 0) * 1000000L + tickNanos - 1) / tickNanos;
+        // Part of the current tick has passed already, so counting from its
+        // start could fire up to a tick early.
+        long deadline = Math.max(now + delayTicks + 1, currentTick + 1);
+
+        t.wheel = this;
+        t.deadlineTick = deadline;
+        t.pending = true;
+        Timeout head = slots[(int) deadline & mask];
+        t.prev = head.prev;
+        t.next = head;
+        head.prev.next = t;
+        head.prev = t;
+        if (numPending++ == 0) {
+            notify(); // wake up an idle ticker
+        }
+    }
+
+    synchronized boolean cancel(Timeout t) {
+        if (!t.pending) return false;
+        unlink(t);
+        return true;
+    }
+
+    /**
+     * Stops the timer thread. Pending timeouts never fire.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notify();
+    }
+
+    public synchronized int getNumPending() {
+        return numPending;
+    }
+
+    private void unlink(Timeout t) {
+        t.prev.next = t.next;
+        t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.pending = false;
+        numPending--;
+    }
+
+    private long nowTick() {
+        return (System.nanoTime() - startNanos) / tickNanos;
+    }
+
+    private void runTicker() {
+        // Due timeouts are collected here rather than chained through
+        // their own links: once unlinked, a timeout may be rescheduled
+        // by a task that wakes up before the timer thread gets to it.
+        ArrayList<Timeout> expired = new ArrayList<Timeout>();
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (!shutdown && numPending == 0) {
+                        wait();
+                    }
+                    if (shutdown) return;
+                    long waitNanos = (currentTick + 1) * tickNanos - (System.nanoTime() - startNanos);
+                    if (waitNanos > 0) {
+                        wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                        if (shutdown) return;
+                    }
+                } catch (InterruptedException ignore) {
+                }
+                advance(nowTick(), expired);
+            }
+            // Fire outside the lock; expired() typically calls Task.resume()
+            for (int i = 0, n = expired.size(); i < n; i++) {
+                try {
+                    expired.get(i).expired();
+                } catch (Throwable th) {
+                    th.printStackTrace();
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * Moves the wheel up to the given tick, unlinking every timeout that
+     * has become due and adding it to expired.
+     */
+    private void advance(long toTick, ArrayList<Timeout> expired) {
+        long from = currentTick + 1;
+        // Having slept through more than one revolution, each slot needs
+        // to be visited only once.
+        if (toTick - from > mask) {
+            from = toTick - mask;
+        }
+        for (long tick = from; tick <= toTick && numPending > 0; tick++) {
+            Timeout head = slots[(int) tick & mask];
+            Timeout t = head.next;
+            while (t != head) {
+                Timeout nxt = t.next;
+                if (t.deadlineTick <= toTick) {
+                    unlink(t);
+                    expired.add(t);
+                }
+                t = nxt;
+            }
+        }
+        if (toTick > currentTick) {
+            currentTick = toTick;
+        }
+    }
+
+    private static class Sentinel extends Timeout {
+        protected void expired() {}
+    }
+}
@@ -0,0 +1,61 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.fibers;
+
+/**
+ * A thread owned by a {@link Scheduler}. It runs tasks from its own deque
+ * first (most recently resumed first), then from the scheduler's shared
+ * queue, and finally steals from a randomly chosen peer.
+ */
+public class WorkerThread extends Thread {
+    final Scheduler scheduler;
+    final TaskDeque deque = new TaskDeque();
+    private int     seed;   // xorshift state for victim selection
+
+    WorkerThread(Scheduler scheduler, String name) {
+        super(name);
+        this.scheduler = scheduler;
+        seed = System.identityHashCode(this) | 1;
+        setDaemon(true);
+    }
+
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    public void run() {
+        Scheduler s = scheduler;
+        while (!s.isShutdown()) {
+            Runnable r = deque.pop();
+            if (r == null) {
+                r = s.injectQueue.poll();
+                if (r == null) {
+                    r = s.steal(this);
+                    if (r == null) {
+                        s.idle();
+                        continue;
+                    }
+                }
+            }
+            try {
+                r.run();
+            } catch (Throwable th) {
+                // Task.run traps task exceptions; this is for plain Runnables
+                th.printStackTrace();
+            }
+        }
+    }
+
+    int nextRandom(int bound) {
+        int x = seed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        seed = x;
+        return (x & Integer.MAX_VALUE) % bound;
+    }
+}
@@ -147,6 +147,13 @@ public class BasicBlock implements Comparable<BasicBlock> {
      * method. The entry point is the target of a JSR instruction.
      */
     static final int              PAUSABLE_SUB           = 1 << 8;
+
+    /*
+     * Set if this block starts or ends a range covered by a catch handler.
+     * Such a block isn't coalesced with its predecessor, so that a handler
+     * covers a block either all through or not at all.
+     */
+    static final int              TRY_BOUNDARY       = 1 << 9;
     /**
      * The flow to which this BB belongs.
      */
@@ -184,10 +191,11 @@ public class BasicBlock implements Comparable<BasicBlock> {
     public Usage                  usage;
 
     /**
-     * A cached version of all sucessors' usage, successors being catch handlers
-     * and real successors.
+     * Cached versions of all sucessors' usage, of real successors and of
+     * catch handlers.
      */
     ArrayList<Usage>      succUsage;
+    ArrayList<Usage>      handlerUsage;
 
     /**
      * The frame at the BB's entry point. It changes when propagating changes
@@ -391,6 +399,16 @@ public class BasicBlock implements Comparable<BasicBlock> {
         AbstractInsnNode ainode = getInstruction(endPos);
         return ainode.getOpcode();
     }
+
+    /**
+     * @return true if the last instruction is a jump (including GOTO and JSR)
+     *         or a switch
+     */
+    private boolean endsWithBranch() {
+        AbstractInsnNode ainode = getInstruction(endPos);
+        return ainode instanceof JumpInsnNode || ainode instanceof TableSwitchInsnNode
+                || ainode instanceof LookupSwitchInsnNode;
+    }
     
     /*
      * Blocks connected by an edge are candidates for coalescing if: <dl> <li>
@@ -400,7 +418,10 @@ public class BasicBlock implements Comparable<BasicBlock> {
      * <li> The edge connecting the two is not because of a GOTO. We only want
      * those where one block falls into the other. The reason is that each block
      * marks out a *contiguous* range of instructions. Most compilers would have
-     * gotten rid of this unnecessary jump anyway. </li>
+     * gotten rid of this unnecessary jump anyway. Nor is it a conditional
+     * jump or a switch whose targets are all the next instruction (javac
+     * emits "ifne NEXT" for a trailing continue): the target must stay the
+     * start of a block, as it needs a stack map frame of its own. </li>
      * 
      * <li> The successor block doesn't begin with a method call that we are
      * interested in (like pausable methods). This is a boundary we are
@@ -412,8 +433,8 @@ public class BasicBlock implements Comparable<BasicBlock> {
         while (true) {
             if (successors.size() == 1) {
                 BasicBlock succ = successors.get(0);
-                if (succ.numPredecessors == 1 && lastInstruction() != GOTO && lastInstruction() != JSR
-                        && !succ.isPausable()) {
+                if (succ.numPredecessors == 1 && !endsWithBranch()
+                        && !succ.isPausable() && !succ.hasFlag(TRY_BOUNDARY)) {
                     // successor can be merged
                     // absorb succesors and usage mask
                     this.successors = succ.successors;
@@ -475,6 +496,7 @@ public class BasicBlock implements Comparable<BasicBlock> {
             // own
             frame.push(Value.make(startPos, D_RETURN_ADDRESS));
         }
+        mergeHandlers(frame);
         String componentType = null;
         boolean canThrowException = false;
         boolean propagateFrame = true;
@@ -573,6 +595,8 @@ public class BasicBlock implements Comparable<BasicBlock> {
                         v1 = frame.pop();
                         var = ((VarInsnNode) ain).var;
                         frame.setLocal(var, v1);
+                        // the handlers see both the old and the new value
+                        mergeHandlers(frame);
                         break;
                         
                     case IASTORE:
@@ -938,7 +962,13 @@ public class BasicBlock implements Comparable<BasicBlock> {
                         String desc = ((MethodInsnNode) ain).desc;
                         frame.popn(TypeDesc.getNumArgumentTypes(desc));
                         if (opcode != INVOKESTATIC) {
-                            frame.pop(); // "this" ref
+                            v = frame.pop(); // "this" ref
+                            if (opcode == INVOKESPECIAL && ((MethodInsnNode) ain).name.equals("<init>")) {
+                                // The object is initialized now. Give its copies
+                                // a value of their own, so that the uninitialized
+                                // one can be told apart (see StackMapAdapter)
+                                frame.replace(v, Value.make(i, v.getTypeDesc()));
+                            }
                         }
                         desc = TypeDesc.getReturnTypeDesc(desc);
                         if (desc != D_VOID) {
@@ -1049,12 +1079,8 @@ public class BasicBlock implements Comparable<BasicBlock> {
             if (propagateFrame) {
                 mergeSuccessors(frame);
             }
-            if (canThrowException && handlers != null) {
-                for (Handler handler : handlers) {
-                    handler.catchBB.merge(frame, /* localsOnly= */true); // merge
-                    // only
-                    // locals
-                }
+            if (canThrowException) {
+                mergeHandlers(frame);
                 canThrowException = false;
             }
         } catch (AssertionError ae) {
@@ -1067,6 +1093,14 @@ public class BasicBlock implements Comparable<BasicBlock> {
 
     }
 
+    private void mergeHandlers(Frame frame) {
+        if (handlers != null) {
+            for (Handler handler : handlers) {
+                handler.catchBB.merge(frame, /* localsOnly= */true);
+            }
+        }
+    }
+
     public boolean isCatchHandler() {
         return caughtExceptionType != null;
     }
@@ -1122,16 +1156,16 @@ public class BasicBlock implements Comparable<BasicBlock> {
     public boolean flowVarUsage() {
         // for live var analysis, treat catch handlers as successors too.
         if (succUsage == null) {
-            succUsage = new ArrayList<Usage>(successors.size()
-                    + handlers.size());
+            succUsage = new ArrayList<Usage>(successors.size());
             for (BasicBlock succ : successors) {
                 succUsage.add(succ.usage);
             }
+            handlerUsage = new ArrayList<Usage>(handlers.size());
             for (Handler h : handlers) {
-                succUsage.add(h.catchBB.usage);
+                handlerUsage.add(h.catchBB.usage);
             }
         }
-        return usage.evalLiveIn(succUsage);
+        return usage.evalLiveIn(succUsage, handlerUsage);
     }
 
     /**
@@ -33,6 +33,9 @@ import static kilim.analysis.VMType.TOBJECT;
 import static kilim.analysis.VMType.loadVar;
 import static kilim.analysis.VMType.storeVar;
 import static kilim.analysis.VMType.toVmType;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
 import static org.objectweb.asm.Opcodes.ACONST_NULL;
 import static org.objectweb.asm.Opcodes.ALOAD;
 import static org.objectweb.asm.Opcodes.ARETURN;
@@ -56,8 +59,12 @@ import static org.objectweb.asm.Opcodes.GOTO;
 import static org.objectweb.asm.Opcodes.I2B;
 import static org.objectweb.asm.Opcodes.I2C;
 import static org.objectweb.asm.Opcodes.I2S;
+import static org.objectweb.asm.Opcodes.IADD;
 import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ICONST_1;
 import static org.objectweb.asm.Opcodes.ICONST_M1;
+import static org.objectweb.asm.Opcodes.IFNE;
+import static org.objectweb.asm.Opcodes.INSTANCEOF;
 import static org.objectweb.asm.Opcodes.ILOAD;
 import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
@@ -80,6 +87,7 @@ import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collections;
 
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.tree.MethodInsnNode;
@@ -147,6 +155,13 @@ public class CallWeaver {
 
     Label                callLabel;
 
+    /**
+     * With the fast-calls option, the call instruction itself, past the
+     * inline stand-in for fiber.down(). Rewinding calls the real down() and
+     * jumps here.
+     */
+    private Label        invokeLabel;
+
     private ValInfoList  valInfoList;
 
     /**
@@ -168,6 +183,12 @@ public class CallWeaver {
     /** Memoized version of getNumArgs() */
     int                  numArgs = -1;
 
+    /**
+     * The synthetic method genSave calls to build and hand over the state,
+     * if this call's method is too big to have it inline. Null otherwise.
+     */
+    String               saveHelperName;
+
     public CallWeaver(MethodWeaver mw, BasicBlock aBB) {
         methodWeaver = mw;
         bb = aBB;
@@ -178,7 +199,13 @@ public class CallWeaver {
             resumeLabel = new Label();
         assignRegisters();
         stateClassName = createStateClass();
-        methodWeaver.ensureMaxStack(getNumBottom() + 2); // Fiber + state
+        methodWeaver.ensureMaxStack(getStackWords(getNumBottom()) + 3); // Fiber + state/self + pc
+        if (mw.getOptions().fastCalls()) {
+            invokeLabel = new Label();
+            // inline down() and up(), see genFastDown and genFastUp
+            methodWeaver.ensureMaxStack(getStackWords(getStackLen()) + 3);
+            methodWeaver.ensureMaxStack(getStackWords(getNumBottom()) + 2 + 3);
+        }
     }
 
     /**
@@ -199,6 +226,14 @@ public class CallWeaver {
         varUsage.set(mw.getFiberVar());
         numVars = mw.getFiberVar() + 1; // knowing fiberVar is beyond anything
                                         // that's used
+        if (mw.getDepthVar() != -1) {
+            varUsage.set(mw.getDepthVar());
+            numVars = mw.getDepthVar() + 1;
+        }
+        if (mw.getRewindVar() != -1) {
+            varUsage.set(mw.getRewindVar());
+            numVars = mw.getRewindVar() + 1;
+        }
         mw.ensureMaxVars(numVars);
         Usage u = bb.usage;
         valInfoList = new ValInfoList();
@@ -246,8 +281,12 @@ public class CallWeaver {
         }
         Collections.sort(valInfoList); // sorts by type and var
         int fieldNum = 0;
+        boolean exact = mw.getOptions().exactStates();
         for (ValInfo vi : valInfoList) {
             vi.fieldName = "f" + fieldNum++;
+            if (exact) {
+                vi.exactDesc = VMType.exactFieldDesc(vi.val.getTypeDesc());
+            }
         }
     }
 
@@ -255,6 +294,18 @@ public class CallWeaver {
         return bb.startFrame.getStackLen();
     }
 
+    /**
+     * The number of words taken by the bottom n values of the stack
+     */
+    int getStackWords(int n) {
+        Frame f = bb.startFrame;
+        int words = 0;
+        for (int i = 0; i < n; i++) {
+            words += f.getStack(i).category();
+        }
+        return words;
+    }
+
     /**
      * The total number consumed by the call, including its object reference
      */
@@ -291,6 +342,9 @@ public class CallWeaver {
      *         ask the next state in the fiber's list
      *   goto F_CALL: // jump to the invocation site.
      * </pre>
+     * With the fast-calls option, the call site's stand-in for fiber.down()
+     * only handles calls that don't rewind, so the rewind path calls down()
+     * itself and jumps to the invocation past it.
      * 
      * @param mv
      */
@@ -305,7 +359,7 @@ public class CallWeaver {
         // type going in just to keep the verifier happy. Of course,
         // we need to do that only if that var is live-in.
         
-        for (int i = methodWeaver.getNumWordsInSig() + 1; i < f.getMaxLocals(); i++) {
+        for (int i = methodWeaver.getFiberParamVar(); i < f.getMaxLocals(); i++) {
             Value v = f.getLocal(i);
             if (u.isLiveIn(i)) {
                 int vmt = toVmType(v.getTypeDesc());
@@ -373,7 +427,13 @@ public class CallWeaver {
             mv.visitInsn(VMType.constInsn[vmt]);
         }
 
-        mv.visitJumpInsn(GOTO, callLabel);
+        if (invokeLabel != null) {
+            loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
+            mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "down", "()" + D_FIBER);
+            mv.visitJumpInsn(GOTO, invokeLabel);
+        } else {
+            mv.visitJumpInsn(GOTO, callLabel);
+        }
     }
 
     /**
@@ -396,8 +456,13 @@ public class CallWeaver {
     static String fiberArg = D_FIBER + ')';
     void genCall(MethodVisitor mv) {
         mv.visitLabel(callLabel);
-        loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
-        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "down", "()" + D_FIBER);
+        if (invokeLabel != null) {
+            genFastDown(mv);
+            mv.visitLabel(invokeLabel);
+        } else {
+            loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
+            mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "down", "()" + D_FIBER);
+        }
         MethodInsnNode mi = getMethodInsn();
         if (mi.desc.indexOf(fiberArg) == -1) {
             // Don't add another fiberarg if it already has one. It'll already
@@ -439,6 +504,9 @@ public class CallWeaver {
      * 
      */
     void genPostCall(MethodVisitor mv) {
+        if (invokeLabel != null) {
+            genFastUp(mv);
+        }
         loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
         mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "up", "()I");
         Label restoreLabel = new Label();
@@ -453,6 +521,62 @@ public class CallWeaver {
         mv.visitLabel(resumeLabel);
     }
 
+    /**
+     * fast-calls: what fiber.down() does for a call that doesn't rewind,
+     * which has no state at the next depth. Leaves the fiber on the stack as
+     * the last argument.
+     * <pre>
+     *     fiber.iStack++ ; fiber.pc = 0 ; fiber.curState = null
+     *     aload &lt;fiberVar&gt;
+     * </pre>
+     */
+    private void genFastDown(MethodVisitor mv) {
+        int fiberVar = methodWeaver.getFiberVar();
+        loadVar(mv, TOBJECT, fiberVar);
+        mv.visitInsn(DUP);
+        mv.visitFieldInsn(GETFIELD, FIBER_CLASS, "iStack", D_INT);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IADD);
+        mv.visitFieldInsn(PUTFIELD, FIBER_CLASS, "iStack", D_INT);
+        loadVar(mv, TOBJECT, fiberVar);
+        mv.visitInsn(ICONST_0);
+        mv.visitFieldInsn(PUTFIELD, FIBER_CLASS, "pc", D_INT);
+        loadVar(mv, TOBJECT, fiberVar);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitFieldInsn(PUTFIELD, FIBER_CLASS, "curState", D_STATE);
+        loadVar(mv, TOBJECT, fiberVar);
+    }
+
+    /**
+     * fast-calls: if the callee didn't pause and this frame has no state
+     * waiting to be restored, all that up() would do is decrement iStack
+     * (pc and curState are left for the next down() to set).
+     * <pre>
+     *     if (!fiber.isPausing &amp;&amp; rewindVar == 0) {
+     *         fiber.iStack--
+     *         goto RESUME
+     *     }
+     *     ;; falls through to fiber.up() and the switch
+     * </pre>
+     */
+    private void genFastUp(MethodVisitor mv) {
+        int fiberVar = methodWeaver.getFiberVar();
+        Label upLabel = new Label();
+        loadVar(mv, TOBJECT, fiberVar);
+        mv.visitFieldInsn(GETFIELD, FIBER_CLASS, "isPausing", D_BOOLEAN);
+        mv.visitJumpInsn(IFNE, upLabel);
+        loadVar(mv, VMType.TINT, methodWeaver.getRewindVar());
+        mv.visitJumpInsn(IFNE, upLabel);
+        loadVar(mv, TOBJECT, fiberVar);
+        mv.visitInsn(DUP);
+        mv.visitFieldInsn(GETFIELD, FIBER_CLASS, "iStack", D_INT);
+        mv.visitInsn(ICONST_M1);
+        mv.visitInsn(IADD);
+        mv.visitFieldInsn(PUTFIELD, FIBER_CLASS, "iStack", D_INT);
+        mv.visitJumpInsn(GOTO, resumeLabel);
+        mv.visitLabel(upLabel);
+    }
+
     /**
      * Code for the case where we are yielding, and we have state built up from
      * a previous call. There's nothing meaningful to do except keep the
@@ -510,7 +634,6 @@ public class CallWeaver {
     private void genSave(MethodVisitor mv, Label saveLabel) {
         mv.visitLabel(saveLabel);
 
-        Frame f = bb.startFrame;
         // pop return value if any.
         String retType = getReturnType(); 
         if (retType != D_VOID) {
@@ -518,6 +641,29 @@ public class CallWeaver {
             // function is a dummy value
             mv.visitInsn(TypeDesc.isDoubleWord(retType) ? POP2 : POP);
         }
+        if (savesNothing()) {
+            genSaveTail(mv);
+        } else if (saveHelperName != null) {
+            genCallSaveHelper(mv);
+        } else {
+            genSaveState(mv);
+        }
+        // Figure out the return type of the calling method and issue the
+        // appropriate xRETURN instruction
+        retType = TypeDesc.getReturnTypeDesc(bb.flow.desc);
+        if (retType == D_VOID) {
+            mv.visitInsn(RETURN);
+        } else {
+            int vmt = VMType.toVmType(retType);
+            // ICONST_0, DCONST_0 etc.
+            mv.visitInsn(VMType.constInsn[vmt]);
+            // IRETURN, DRETURN, etc.
+            mv.visitInsn(VMType.retInsn[vmt]);
+        }
+    }
+
+    private void genSaveState(MethodVisitor mv) {
+        Frame f = bb.startFrame;
         /*
          * Instantiate state class. Call one of new xxxState(this, pc, fiber),
          * or new xxxState(pc, fiber) depending whether this method is static or
@@ -527,10 +673,11 @@ public class CallWeaver {
          * the method weaver's list. This allows us to do a switch in the
          * method's entry.
          */
-        mv.visitTypeInsn(NEW, stateClassName);
-        mv.visitInsn(DUP); // 
-        // call constructor
-        mv.visitMethodInsn(INVOKESPECIAL, stateClassName, "<init>", "()V");
+        if (methodWeaver.getOptions().reuseStates()) {
+            genSpareState(mv, methodWeaver.getFiberVar());
+        } else {
+            genNewState(mv);
+        }
         // save state in register
         int stateVar = allocVar(1);
         storeVar(mv, TOBJECT, stateVar);
@@ -540,14 +687,7 @@ public class CallWeaver {
             mv.visitInsn(ALOAD_0); // for state.self == this
             mv.visitFieldInsn(PUTFIELD, STATE_CLASS, "self", D_OBJECT);
         }
-        int pc = methodWeaver.getPC(this);
-        loadVar(mv, TOBJECT, stateVar); // state.pc
-        if (pc < 6) {
-            mv.visitInsn(ICONST_0 + pc);
-        } else {
-            mv.visitIntInsn(BIPUSH, pc);
-        }
-        mv.visitFieldInsn(PUTFIELD, STATE_CLASS, "pc", D_INT);
+        genSavePC(mv, stateVar);
 
         // First save bottom stack into state
         int i = getNumBottom() - 1;
@@ -593,18 +733,243 @@ public class CallWeaver {
         mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "setState", "("
                 + D_STATE + ")V");
         releaseVar(stateVar, 1);
-        // Figure out the return type of the calling method and issue the
-        // appropriate xRETURN instruction
-        retType = TypeDesc.getReturnTypeDesc(bb.flow.desc);
-        if (retType == D_VOID) {
-            mv.visitInsn(RETURN);
+    }
+
+    private void genSavePC(MethodVisitor mv, int stateVar) {
+        loadVar(mv, TOBJECT, stateVar); // state.pc
+        genPC(mv);
+        mv.visitFieldInsn(PUTFIELD, STATE_CLASS, "pc", D_INT);
+    }
+
+    private void genPC(MethodVisitor mv) {
+        int pc = methodWeaver.getPC(this);
+        if (pc < 6) {
+            mv.visitInsn(ICONST_0 + pc);
+        } else if (pc <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, pc);
+        } else if (pc <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, pc);
         } else {
-            int vmt = VMType.toVmType(retType);
-            // ICONST_0, DCONST_0 etc.
-            mv.visitInsn(VMType.constInsn[vmt]);
-            // IRETURN, DRETURN, etc.
-            mv.visitInsn(VMType.retInsn[vmt]);
+            mv.visitLdcInsn(new Integer(pc));
+        }
+    }
+
+    /**
+     * True if nothing of the frame but "this" survives the call: no
+     * variable is live after it (other than constants), and the bottom of
+     * the stack holds only constants. That is the case for a pausable call
+     * in tail position, as in "return mb.get();". Resuming such a frame
+     * just rewinds to the call, so all it needs to keep is its pc and self.
+     */
+    boolean savesNothing() {
+        return valInfoList.size() == 0;
+    }
+
+    /**
+     * genSaveState for a call that savesNothing(): no state class and no
+     * allocation, the fiber refills a State of its own for this depth.
+     * <pre>
+     *     pop bottom stack                 ;; all constants
+     *     aload &lt;fiberVar&gt;
+     *     aload_0 or aconst_null           ;; self
+     *     push pc
+     *     invokevirtual Fiber.setTailState(Object, int)
+     * </pre>
+     */
+    private void genSaveTail(MethodVisitor mv) {
+        Frame f = bb.startFrame;
+        for (int i = getNumBottom() - 1; i >= 0; i--) {
+            mv.visitInsn(f.getStack(i).category() == 2 ? POP2 : POP);
         }
+        loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
+        mv.visitInsn(bb.flow.isStatic() ? ACONST_NULL : ALOAD_0);
+        genPC(mv);
+        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "setTailState", "("
+                + D_OBJECT + "I)V");
+    }
+
+    /**
+     * The split version of genSaveState, for methods over
+     * MethodWeaver.HUGE_METHOD_LIMIT. The bottom of the stack is already in
+     * place as the helper's first arguments; we add the saved vars, "this"
+     * and the fiber. That is one load per value instead of a load, a store
+     * and a putfield, and the state's allocation moves out as well.
+     * <pre>
+     *     xload &lt;var&gt;         ;; for each var in valInfoList
+     *     [aload_0]             ;; if this method isn't static
+     *     aload &lt;fiberVar&gt;
+     *     invokestatic saveHelperName
+     * </pre>
+     */
+    private void genCallSaveHelper(MethodVisitor mv) {
+        Frame f = bb.startFrame;
+        int numWords = 0;
+        for (int i = 0; i < getNumBottom(); i++) {
+            numWords += f.getStack(i).category();
+        }
+        for (ValInfo vi : valInfoList) {
+            if (vi.var == -1)
+                continue;
+            loadVar(mv, vi.vmt, vi.var);
+            numWords += vi.val.category();
+        }
+        if (!bb.flow.isStatic()) {
+            mv.visitInsn(ALOAD_0);
+            numWords++;
+        }
+        loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
+        methodWeaver.ensureMaxStack(numWords + 1);
+        mv.visitMethodInsn(INVOKESTATIC, methodWeaver.getClassName(), saveHelperName,
+                getSaveHelperDesc());
+    }
+
+    /**
+     * (bottom stack values, saved vars, [this,] fiber)V. Values on the bottom
+     * of the stack that are constants or duplicates are passed and ignored.
+     */
+    private String getSaveHelperDesc() {
+        Frame f = bb.startFrame;
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < getNumBottom(); i++) {
+            Value v = f.getStack(i);
+            ValInfo vi = valInfoList.find(v);
+            if (vi == null || vi.var != -1) {
+                sb.append(VMType.fieldDesc[VMType.toVmType(v.getTypeDesc())]);
+            } else {
+                sb.append(vi.fieldDesc());
+            }
+        }
+        for (ValInfo vi : valInfoList) {
+            if (vi.var != -1) {
+                sb.append(vi.fieldDesc());
+            }
+        }
+        if (!bb.flow.isStatic()) {
+            sb.append(D_OBJECT);
+        }
+        return sb.append(D_FIBER).append(")V").toString();
+    }
+
+    /**
+     * Writes the method genCallSaveHelper calls. It does what genSaveState
+     * does inline, taking the values from its arguments.
+     * <pre>
+     *     new stateClass, dup, invokespecial &lt;init&gt;  ;; or genSpareState
+     *     astore &lt;stateVar&gt;
+     *     state.self = self ; state.pc = pc
+     *     state.fx = arg     ;; for each arg in valInfoList
+     *     fiber.setState(state)
+     *     return
+     * </pre>
+     */
+    void genSaveHelper(ClassVisitor cv) {
+        String desc = getSaveHelperDesc();
+        MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC,
+                saveHelperName, desc, null, null);
+        mv.visitCode();
+        Frame f = bb.startFrame;
+        int numBottom = getNumBottom();
+        // locals of the arguments, in order
+        int[] bottomVars = new int[numBottom];
+        int var = 0;
+        for (int i = 0; i < numBottom; i++) {
+            bottomVars[i] = var;
+            var += f.getStack(i).category();
+        }
+        int[] valVars = new int[valInfoList.size()];
+        for (int i = 0; i < valVars.length; i++) {
+            ValInfo vi = valInfoList.get(i);
+            if (vi.var != -1) {
+                valVars[i] = var;
+                var += vi.val.category();
+            }
+        }
+        int selfVar = -1;
+        if (!bb.flow.isStatic()) {
+            selfVar = var++;
+        }
+        int fiberVar = var++;
+        int stateVar = var++;
+
+        if (methodWeaver.getOptions().reuseStates()) {
+            genSpareState(mv, fiberVar);
+        } else {
+            genNewState(mv);
+        }
+        storeVar(mv, TOBJECT, stateVar);
+        if (selfVar != -1) {
+            loadVar(mv, TOBJECT, stateVar);
+            loadVar(mv, TOBJECT, selfVar);
+            mv.visitFieldInsn(PUTFIELD, STATE_CLASS, "self", D_OBJECT);
+        }
+        genSavePC(mv, stateVar);
+        for (int i = 0; i < numBottom; i++) {
+            ValInfo vi = valInfoList.find(f.getStack(i));
+            if (vi != null && vi.var == -1) {
+                loadVar(mv, TOBJECT, stateVar);
+                loadVar(mv, vi.vmt, bottomVars[i]);
+                mv.visitFieldInsn(PUTFIELD, stateClassName, vi.fieldName, vi.fieldDesc());
+            }
+        }
+        for (int i = 0; i < valVars.length; i++) {
+            ValInfo vi = valInfoList.get(i);
+            if (vi.var == -1)
+                continue;
+            loadVar(mv, TOBJECT, stateVar);
+            loadVar(mv, vi.vmt, valVars[i]);
+            mv.visitFieldInsn(PUTFIELD, stateClassName, vi.fieldName, vi.fieldDesc());
+        }
+        loadVar(mv, TOBJECT, fiberVar);
+        loadVar(mv, TOBJECT, stateVar);
+        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "setState", "("
+                + D_STATE + ")V");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(3, var);
+        mv.visitEnd();
+    }
+
+    private void genNewState(MethodVisitor mv) {
+        mv.visitTypeInsn(NEW, stateClassName);
+        mv.visitInsn(DUP); // 
+        // call constructor
+        mv.visitMethodInsn(INVOKESPECIAL, stateClassName, "<init>", "()V");
+    }
+
+    /**
+     * reuse-states mode: take the state this depth's last resumed frame left
+     * behind, if it is of the right class, and only allocate otherwise. Every
+     * field of the state class gets overwritten below, except for self in
+     * static methods, which nobody reads.
+     * <pre>
+     *     aload fiberVar
+     *     invokevirtual Fiber.spareState()
+     *     dup
+     *     instanceof stateClass
+     *     ifne REUSE
+     *     pop
+     *     new stateClass, dup, invokespecial &lt;init&gt;
+     *     goto HAVE_STATE
+     *   REUSE:
+     *     checkcast stateClass
+     *   HAVE_STATE:
+     * </pre>
+     */
+    private void genSpareState(MethodVisitor mv, int fiberVar) {
+        Label reuseLabel = new Label();
+        Label haveStateLabel = new Label();
+        loadVar(mv, TOBJECT, fiberVar);
+        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "spareState", "()" + D_STATE);
+        mv.visitInsn(DUP);
+        mv.visitTypeInsn(INSTANCEOF, stateClassName);
+        mv.visitJumpInsn(IFNE, reuseLabel);
+        mv.visitInsn(POP);
+        genNewState(mv);
+        mv.visitJumpInsn(GOTO, haveStateLabel);
+        mv.visitLabel(reuseLabel);
+        if (!stateClassName.equals(STATE_CLASS)) {
+            mv.visitTypeInsn(CHECKCAST, stateClassName);
+        }
+        mv.visitLabel(haveStateLabel);
     }
 
     /**
@@ -662,6 +1027,17 @@ public class CallWeaver {
             stateVar = allocVar(1);
         }
         genRestoreVars(mv, stateVar);
+        if (invokeLabel != null) {
+            // the state is gone from the fiber; up() is optional from now on
+            mv.visitInsn(ICONST_0);
+            storeVar(mv, VMType.TINT, methodWeaver.getRewindVar());
+        }
+        if (methodWeaver.getOptions().reuseStates() && !savesNothing()) {
+            // Hand the state back for the next save at this depth. (The stack
+            // holds at most the return value here, so there is room for this.)
+            loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
+            mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "keepState", "()V");
+        }
 
         // Now restore the bottom values in the stack from state
         for (int i = 0; i < numBottom; i++) {
@@ -673,7 +1049,7 @@ public class CallWeaver {
                 if (vi.var == -1) {
                     loadVar(mv, TOBJECT, stateVar);
                     mv.visitFieldInsn(GETFIELD, stateClassName, vi.fieldName, vi.fieldDesc());
-                    checkcast(mv, v);
+                    checkcastField(mv, vi);
                 } else {
                     // this stack value is a duplicate of a local var, which has
                     // already been loaded and is of the right type
@@ -741,7 +1117,7 @@ public class CallWeaver {
                     // load val from state
                     loadVar(mv, TOBJECT, stateVar);
                     mv.visitFieldInsn(GETFIELD, stateClassName, vi.fieldName, vi.fieldDesc());
-                    checkcast(mv, v); // don't need to do this in the constant case
+                    checkcastField(mv, vi); // don't need to do this in the constant case
                 } else {
                     // It is a duplicate of another var. No need to load this var from stack
                     assert vi.var < i;
@@ -791,6 +1167,16 @@ public class CallWeaver {
         }
     }
 
+    /**
+     * Like checkcast, for a value just read from its state field. An exactly
+     * typed field (exact-states) already has the value's type.
+     */
+    private void checkcastField(MethodVisitor mv, ValInfo vi) {
+        if (vi.exactDesc == null) {
+            checkcast(mv, vi.val);
+        }
+    }
+
     private void loadConstant(MethodVisitor mv, Value v) {
         if (v.getTypeDesc() == D_NULL) {
             mv.visitInsn(ACONST_NULL);
@@ -913,13 +1299,19 @@ class ValInfo implements Comparable<ValInfo> {
      */
     String fieldName;
 
+    /**
+     * The field's type if the state class is exactly typed (exact-states
+     * option), null for the VM type's canonical field type.
+     */
+    String exactDesc;
+
     ValInfo(Value v) {
         val = v;
         vmt = VMType.toVmType(v.getTypeDesc());
     }
 
     String fieldDesc() {
-        return VMType.fieldDesc[vmt];
+        return exactDesc != null ? exactDesc : VMType.fieldDesc[vmt];
     }
 
     public int compareTo(ValInfo that) {
@@ -996,6 +1388,49 @@ class VMType {
 
     static final int[]    category  = { 1, 1, 2, 2, 1 };
 
+    /**
+     * @return the descriptor to declare a field holding a value of the given
+     * type with, or null if it must be held in a field of its VM type.
+     * State classes all live in the fibers bundle, and a field typed with
+     * some bundle's class would tie that class to the fibers bundle's loader
+     * (a loader constraint) for as long as the state class exists. So we only
+     * use types that are the same for every bundle: primitives, java.* and
+     * the kilim and kilim.fibers packages.
+     */
+    static String exactFieldDesc(String type) {
+        if (type == D_NULL) {
+            return D_OBJECT; // the value is null; no cast needed either way
+        }
+        int dims = 0;
+        while (type.charAt(dims) == '[') {
+            dims++;
+        }
+        switch (type.charAt(dims)) {
+            case 'Z':
+            case 'B':
+            case 'C':
+            case 'S':
+            case 'I':
+            case 'J':
+            case 'F':
+            case 'D':
+                return type;
+            case 'L':
+                String cls = type.substring(dims + 1, type.length() - 1);
+                if (cls.startsWith("java/") || isKilimApiClass(cls)) {
+                    return type;
+                }
+                return null;
+            default:
+                return null; // undefined or return address; not saved anyway
+        }
+    }
+
+    private static boolean isKilimApiClass(String cls) {
+        String pkg = cls.substring(0, Math.max(cls.lastIndexOf('/'), 0));
+        return pkg.equals("kilim") || pkg.equals("kilim/fibers");
+    }
+
     static int toVmType(String type) {
         switch (type.charAt(0)) {
             case 'Z':
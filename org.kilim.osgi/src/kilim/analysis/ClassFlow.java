@@ -42,6 +42,18 @@ public class ClassFlow extends ClassNode {
     
     final Map<String, MethodFlow> methodsByName = new HashMap<String, MethodFlow>();
     
+    /**
+     * true to inline small pausable methods into their callers before the
+     * analysis. See PausableInliner.
+     */
+    boolean inlineCalls = false;
+
+    /**
+     * Loop iterations between yields if the loops of pausable methods get
+     * yield points, 0 otherwise. See LoopYielder.
+     */
+    int loopBudget = 0;
+    
 	private final InstrumentationContext context;
     
     public ClassFlow(InputStream is, InstrumentationContext context) throws IOException {
@@ -87,6 +99,12 @@ public class ClassFlow extends ClassNode {
         	MethodFlow mf = (MethodFlow)o;
         	mf.postProcess();
         }
+        if (inlineCalls && !isWoven) {
+            new PausableInliner(this).inlineCalls();
+        }
+        if (loopBudget > 0 && !isWoven) {
+            new LoopYielder(this, loopBudget).addYields();
+        }
         
         for (Object o: methods) {
             MethodFlow mf = (MethodFlow)o;
@@ -105,11 +123,14 @@ public class ClassFlow extends ClassNode {
             flows.add(mf);
         }
         methodFlows = flows;
+        context.classFlowAnalyzed();
         return flows;
     }
     
     public String getClassDescriptor() { return classDesc; }
     
+    InstrumentationContext getContext() { return context; }
+    
     public String getClassName() { return super.name.replace('/', '.');}
 
     public boolean isPausable() {
@@ -0,0 +1,88 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.analysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads class summaries through the resources of a class loader, for
+ * weaving outside of OSGi (see kilim.tools.Weave and Agent). Classes are not loaded,
+ * except java.* ones, which are summarized by reflection as they may be too
+ * new for our version of ASM.
+ */
+public class ClassLoaderResolver implements ClassResolver {
+    /** Marks classes that could not be found */
+    private static final Object MISSING = new Object();
+
+    /** Weak, so that a map from loaders to their resolvers can forget both */
+    private final WeakReference<ClassLoader> loader;
+
+    /** ClassSummary or MISSING by class name */
+    private final ConcurrentHashMap<String, Object> summaries = new ConcurrentHashMap<String, Object>();
+
+    private final ConcurrentHashMap<String, Integer> statuses = new ConcurrentHashMap<String, Integer>();
+
+    public ClassLoaderResolver(ClassLoader loader) {
+        this.loader = new WeakReference<ClassLoader>(loader);
+    }
+
+    public ClassSummary getClassSummary(String name) {
+        Object summary = summaries.get(name);
+        if (summary == null) {
+            summary = read(name);
+            if (summary == null) {
+                summary = MISSING;
+            }
+            Object prev = summaries.putIfAbsent(name, summary);
+            if (prev != null) {
+                summary = prev;
+            }
+        }
+        return summary == MISSING ? null : (ClassSummary) summary;
+    }
+
+    public void addClassSummary(ClassSummary summary) {
+        summaries.putIfAbsent(summary.name, summary);
+    }
+
+    public ConcurrentHashMap<String, Integer> getPausableStatusCache() {
+        return statuses;
+    }
+
+    private ClassSummary read(String name) {
+        ClassLoader loader = this.loader.get();
+        if (loader == null) {
+            return null;
+        }
+        if (name.startsWith("java/")) {
+            try {
+                return ClassSummary.fromClass(Class.forName(name.replace('/', '.'), false, loader), this);
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+        URL url = loader.getResource(name + ".class");
+        if (url == null) {
+            return null;
+        }
+        try {
+            InputStream in = url.openStream();
+            try {
+                return ClassSummary.read(in, this);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
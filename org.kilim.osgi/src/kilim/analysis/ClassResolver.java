@@ -0,0 +1,32 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.analysis;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the summaries of classes as seen from some class loader.
+ */
+public interface ClassResolver {
+    /**
+     * @param name internal name (with slashes)
+     * @return null if the class can't be found
+     */
+    ClassSummary getClassSummary(String name);
+
+    /**
+     * @return where Detector memoizes the pausable status of methods as seen
+     *         through this resolver, by owner.name+desc
+     */
+    ConcurrentHashMap<String, Integer> getPausableStatusCache();
+
+    /**
+     * Remembers the summary of a class that has just been analyzed, in
+     * place of reading it again.
+     */
+    void addClassSummary(ClassSummary summary);
+}
@@ -0,0 +1,309 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import kilim.Constants;
+
+/**
+ * A quick look at raw class bytes, to avoid building a ClassFlow for classes
+ * that can't need weaving. mayNeedWeaving reads only the constant pool and
+ * the access flags of the methods, and allocates nothing.
+ *
+ * A class needs weaving only if it has a pausable method, and every such
+ * method is either marked with the kilim.pausable annotation (so that the
+ * annotation's descriptor is in the constant pool) or is a bridge to one.
+ * Classes that refer to kilim.fibers (a Task subclass, a user of Mailbox)
+ * are passed on as well, even with nothing marked: the weaver rejects
+ * those that call or override pausable methods without being marked, and
+ * that error is worth more than the time the scan would save. Otherwise
+ * the mistake only shows at run time, as a NoSuchMethodError or a call to
+ * the wrong override.
+ */
+public class ClassScanner {
+    private static final byte[] PAUSABLE = Constants.D_PAUSABLE.getBytes();
+
+    private static final byte[] FIBERS_PACKAGE = "kilim/fibers/".getBytes();
+
+    private static final int ACC_BRIDGE = 0x0040;
+
+    private static final String STATES_PACKAGE = "kilim/states/";
+
+    /**
+     * @return false if the class certainly doesn't need weaving. true if it
+     * may, or if the bytes can't be understood (the weaver will tell).
+     */
+    public static boolean mayNeedWeaving(byte[] b) {
+        try {
+            return scan(b);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    private static boolean scan(byte[] b) {
+        int n = u2(b, 8);
+        int off = 10;
+        for (int i = 1; i < n; i++) {
+            switch (b[off]) {
+                case 1: // Utf8
+                    int len = u2(b, off + 1);
+                    if ((len == PAUSABLE.length && matches(b, off + 3, PAUSABLE))
+                            || (len > FIBERS_PACKAGE.length && matches(b, off + 3, FIBERS_PACKAGE))) {
+                        return true;
+                    }
+                    off += 3 + len;
+                    break;
+                case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+                    off += 3;
+                    break;
+                case 15: // MethodHandle
+                    off += 4;
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    off += 5;
+                    break;
+                case 5: case 6: // Long, Double take two entries
+                    off += 9;
+                    i++;
+                    break;
+                default:
+                    return true;
+            }
+        }
+        // access, this, super
+        off += 6;
+        off += 2 + 2 * u2(b, off); // interfaces
+        off = skipMembers(b, off, false); // fields
+        return skipMembers(b, off, true) < 0;
+    }
+
+    /**
+     * @return the offset past the fields or methods table at off, or -1 if
+     * checkBridge is set and a bridge method is found.
+     */
+    private static int skipMembers(byte[] b, int off, boolean checkBridge) {
+        int n = u2(b, off);
+        off += 2;
+        for (int i = 0; i < n; i++) {
+            if (checkBridge && (u2(b, off) & ACC_BRIDGE) != 0) {
+                return -1;
+            }
+            int attrs = u2(b, off + 6);
+            off += 8;
+            for (int j = 0; j < attrs; j++) {
+                off += 6 + u4(b, off + 2);
+            }
+        }
+        return off;
+    }
+
+    /**
+     * @return true if the class was woven already (ahead of time, see
+     * kilim.tools.Weave). The weaver marks such classes with a class level
+     * kilim.pausable annotation.
+     */
+    public static boolean isWoven(byte[] b) {
+        try {
+            int[] utf8 = readConstantPool(b);
+            int off = utf8[0];
+            off += 6;
+            off += 2 + 2 * u2(b, off);
+            off = skipMembers(b, off, false);
+            off = skipMembers(b, off, false);
+            int attrs = u2(b, off);
+            off += 2;
+            for (int i = 0; i < attrs; i++) {
+                int len = u4(b, off + 2);
+                if (equals(b, utf8[u2(b, off)], "RuntimeVisibleAnnotations")) {
+                    int p = off + 6;
+                    int n = u2(b, p);
+                    p += 2;
+                    for (int j = 0; j < n; j++) {
+                        if (equals(b, utf8[u2(b, p)], Constants.D_PAUSABLE)) {
+                            return true;
+                        }
+                        p = skipAnnotation(b, p);
+                    }
+                }
+                off += 6 + len;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // not understood; the weaver will tell
+        }
+        return false;
+    }
+
+    /**
+     * @return the kilim/states classes that a (woven) class refers to
+     */
+    public static List<String> getStateClassRefs(byte[] b) {
+        ArrayList<String> ret = new ArrayList<String>();
+        int[] utf8 = readConstantPool(b);
+        int n = u2(b, 8);
+        int off = 10;
+        for (int i = 1; i < n; i++) {
+            int tag = b[off];
+            if (tag == 7) {
+                int nameOff = utf8[u2(b, off + 1)];
+                String name = readUtf8(b, nameOff);
+                if (name.startsWith(STATES_PACKAGE)) {
+                    ret.add(name);
+                }
+            }
+            int size = entrySize(b, off);
+            off += size;
+            if (tag == 5 || tag == 6) {
+                i++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the first feature found that a class loses if it is marked
+     * version 50 (Java 6): constants and calls that need method handles, or
+     * the nestmate attributes. null if there is none.
+     */
+    public static String findPostV1_6Feature(byte[] b) {
+        int[] utf8 = readConstantPool(b);
+        int n = u2(b, 8);
+        int off = 10;
+        for (int i = 1; i < n; i++) {
+            int tag = b[off];
+            switch (tag) {
+                case 15: return "a MethodHandle constant";
+                case 16: return "a MethodType constant";
+                case 17: return "a dynamic constant";
+                case 18: return "invokedynamic";
+            }
+            off += entrySize(b, off);
+            if (tag == 5 || tag == 6) {
+                i++;
+            }
+        }
+        off = utf8[0];
+        off += 6;
+        off += 2 + 2 * u2(b, off);
+        off = skipMembers(b, off, false);
+        off = skipMembers(b, off, false);
+        int attrs = u2(b, off);
+        off += 2;
+        for (int i = 0; i < attrs; i++) {
+            int name = utf8[u2(b, off)];
+            if (equals(b, name, "NestHost") || equals(b, name, "NestMembers")) {
+                return "the " + readUtf8(b, name) + " attribute";
+            }
+            off += 6 + u4(b, off + 2);
+        }
+        return null;
+    }
+
+    /**
+     * @return the offsets of the Utf8 entries by constant pool index, with
+     * the offset just past the constant pool at index 0.
+     */
+    private static int[] readConstantPool(byte[] b) {
+        int n = u2(b, 8);
+        int[] utf8 = new int[n];
+        int off = 10;
+        for (int i = 1; i < n; i++) {
+            int tag = b[off];
+            if (tag == 1) {
+                utf8[i] = off;
+            }
+            int size = entrySize(b, off);
+            if (size < 0) {
+                throw new ArrayIndexOutOfBoundsException("constant pool tag " + tag);
+            }
+            off += size;
+            if (tag == 5 || tag == 6) {
+                i++;
+            }
+        }
+        utf8[0] = off;
+        return utf8;
+    }
+
+    private static int entrySize(byte[] b, int off) {
+        switch (b[off]) {
+            case 1: return 3 + u2(b, off + 1);
+            case 7: case 8: case 16: case 19: case 20: return 3;
+            case 15: return 4;
+            case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: return 5;
+            case 5: case 6: return 9;
+            default: return -1;
+        }
+    }
+
+    private static int skipAnnotation(byte[] b, int off) {
+        int n = u2(b, off + 2);
+        off += 4;
+        for (int i = 0; i < n; i++) {
+            off = skipElementValue(b, off + 2);
+        }
+        return off;
+    }
+
+    private static int skipElementValue(byte[] b, int off) {
+        switch (b[off]) {
+            case 'e': return off + 5;
+            case '@': return skipAnnotation(b, off + 1);
+            case '[': {
+                int n = u2(b, off + 1);
+                off += 3;
+                for (int i = 0; i < n; i++) {
+                    off = skipElementValue(b, off);
+                }
+                return off;
+            }
+            default: return off + 3;
+        }
+    }
+
+    private static boolean equals(byte[] b, int utf8Off, String s) {
+        if (utf8Off == 0 || u2(b, utf8Off + 1) != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (b[utf8Off + 3 + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Class names are plain ASCII in practice; others don't matter here */
+    private static String readUtf8(byte[] b, int utf8Off) {
+        int len = u2(b, utf8Off + 1);
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) (b[utf8Off + 3 + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /** @return true if the bytes at off start with prefix */
+    private static boolean matches(byte[] b, int off, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (b[off + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int u2(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+
+    private static int u4(byte[] b, int off) {
+        return (u2(b, off) << 16) | u2(b, off + 2);
+    }
+}
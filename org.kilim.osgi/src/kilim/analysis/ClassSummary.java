@@ -0,0 +1,204 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.analysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+
+import kilim.Constants;
+import kilim.pausable;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.EmptyVisitor;
+import org.objectweb.asm.tree.MethodInsnNode;
+
+/**
+ * What the weaver needs to know about a class it doesn't weave: its place in
+ * the type hierarchy and which of its methods are pausable. Read straight
+ * from the class bytes, so that weaving doesn't have to load (and define)
+ * the classes it refers to.
+ */
+public class ClassSummary {
+    public final String           name;
+    /** null for java/lang/Object */
+    public final String           superName;
+    public final String[]         interfaces;
+    public final boolean          isInterface;
+    /** Already woven (marked with @pausable at the class level) */
+    public final boolean          isWoven;
+    /** Sees the supertypes of this class */
+    public final ClassResolver    resolver;
+
+    private final HashMap<String, MethodSummary> methods;
+
+    public static class MethodSummary {
+        public final boolean isPausable;
+        public final boolean isBridge;
+        /** The method a bridge calls; null for other methods, or if it calls more than one. */
+        public final String  callOwner, callName, callDesc;
+
+        MethodSummary(boolean isPausable, boolean isBridge, String callOwner,
+                String callName, String callDesc) {
+            this.isPausable = isPausable;
+            this.isBridge = isBridge;
+            this.callOwner = callOwner;
+            this.callName = callName;
+            this.callDesc = callDesc;
+        }
+    }
+
+    private ClassSummary(Class<?> c, ClassResolver resolver) {
+        this.name = Type.getInternalName(c);
+        this.superName = c.getSuperclass() == null ? null : Type.getInternalName(c.getSuperclass());
+        Class<?>[] ifcs = c.getInterfaces();
+        this.interfaces = new String[ifcs.length];
+        for (int i = 0; i < ifcs.length; i++) {
+            interfaces[i] = Type.getInternalName(ifcs[i]);
+        }
+        this.isInterface = c.isInterface();
+        this.isWoven = false;
+        this.resolver = resolver;
+        this.methods = new HashMap<String, MethodSummary>();
+        for (Method m : c.getDeclaredMethods()) {
+            methods.put(m.getName() + "|" + Type.getMethodDescriptor(m), new MethodSummary(
+                    m.isAnnotationPresent(pausable.class), m.isBridge(), null, null, null));
+        }
+    }
+
+    private ClassSummary(ClassFlow cf, ClassResolver resolver) {
+        this.name = cf.name;
+        this.superName = cf.superName;
+        List<?> ifcs = cf.interfaces; // raw in our version of ASM
+        this.interfaces = new String[ifcs.size()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = (String) ifcs.get(i);
+        }
+        this.isInterface = cf.isInterface();
+        this.isWoven = cf.isWoven();
+        this.resolver = resolver;
+        this.methods = new HashMap<String, MethodSummary>();
+        for (MethodFlow mf : cf.getMethodFlows()) {
+            MethodInsnNode call = mf.isBridge() ? mf.findOnlyCallInstruction() : null;
+            methods.put(mf.name + "|" + mf.desc, new MethodSummary(mf.isPausable(),
+                    mf.isBridge(), call == null ? null : call.owner,
+                    call == null ? null : call.name, call == null ? null : call.desc));
+        }
+    }
+
+    private ClassSummary(Reader r, ClassResolver resolver) {
+        this.name = r.name;
+        this.superName = r.superName;
+        this.interfaces = r.interfaces;
+        this.isInterface = (r.access & Constants.ACC_INTERFACE) != 0;
+        this.isWoven = r.isWoven;
+        this.resolver = resolver;
+        this.methods = r.methods;
+    }
+
+    /**
+     * @param resolver to look up the supertypes of the class with
+     */
+    public static ClassSummary read(InputStream is, ClassResolver resolver)
+            throws IOException {
+        Reader r = new Reader();
+        new ClassReader(is).accept(r, true);
+        return new ClassSummary(r, resolver);
+    }
+
+    /**
+     * Keeps what other classes need to know of an analyzed class, so that
+     * the flow (with all its instructions, basic blocks and frames) can go.
+     */
+    public static ClassSummary fromFlow(ClassFlow cf, ClassResolver resolver) {
+        return new ClassSummary(cf, resolver);
+    }
+
+    /**
+     * Summarizes a class that is loaded already, or that can be loaded
+     * without side effects (such as the JDK's, which needn't be readable by
+     * our version of ASM).
+     */
+    public static ClassSummary fromClass(Class<?> c, ClassResolver resolver) {
+        return new ClassSummary(c, resolver);
+    }
+
+    /**
+     * @return the method declared by this class, or null
+     */
+    public MethodSummary getMethod(String methodName, String desc) {
+        return methods.get(methodName + "|" + desc);
+    }
+
+    private static class Reader extends EmptyVisitor {
+        String   name;
+        String   superName;
+        String[] interfaces;
+        int      access;
+        boolean  isWoven;
+        HashMap<String, MethodSummary> methods = new HashMap<String, MethodSummary>();
+
+        @Override
+        public void visit(int version, int access, String name,
+                String signature, String superName, String[] interfaces) {
+            this.access = access;
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            if (desc.equals(Constants.D_PAUSABLE)) {
+                isWoven = true;
+            }
+            return this;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(final int access, final String name,
+                final String desc, String signature, String[] exceptions) {
+            return new EmptyVisitor() {
+                boolean isPausable;
+                int     calls;
+                String  callOwner, callName, callDesc;
+
+                @Override
+                public AnnotationVisitor visitAnnotation(String adesc, boolean visible) {
+                    if (visible && adesc.equals(Constants.D_PAUSABLE)) {
+                        isPausable = true;
+                    }
+                    return this;
+                }
+
+                @Override
+                public void visitMethodInsn(int opcode, String owner,
+                        String mname, String mdesc) {
+                    if (++calls == 1) {
+                        callOwner = owner;
+                        callName = mname;
+                        callDesc = mdesc;
+                    }
+                }
+
+                @Override
+                public void visitEnd() {
+                    boolean isBridge = (access & Constants.ACC_VOLATILE) != 0;
+                    boolean onlyCall = isBridge && calls == 1;
+                    methods.put(name + "|" + desc, new MethodSummary(isPausable,
+                            isBridge, onlyCall ? callOwner : null,
+                            onlyCall ? callName : null, onlyCall ? callDesc : null));
+                }
+            };
+        }
+    }
+}
@@ -13,6 +13,7 @@ import java.io.InputStream;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.objectweb.asm.Attribute;
 import org.objectweb.asm.ClassVisitor;
@@ -28,29 +29,100 @@ import org.objectweb.asm.tree.InnerClassNode;
  * CPS transformed file if needed
  */
 public class ClassWeaver {
+    /**
+     * Identifies the code this weaver generates, for caches of woven
+     * classes. Change it whenever the generated code changes.
+     */
+    public static final int WEAVER_VERSION = 4;
+
     ClassFlow       classFlow;
+    final WeavingOptions options;
     List<ClassInfo> classInfoList = new LinkedList<ClassInfo>();
-    static HashSet<String> stateClasses = new HashSet<String>();
+    /** state class name -> its bytes, for all weavers (which may run in parallel) */
+    static ConcurrentHashMap<String, byte[]> stateClasses = new ConcurrentHashMap<String, byte[]>();
+    /** the state classes already in this weaver's classInfoList */
+    private HashSet<String> usedStateClasses = new HashSet<String>();
+    /** exact-states class name -> field types, to catch hash collisions */
+    static ConcurrentHashMap<String, String> exactStateShapes = new ConcurrentHashMap<String, String>();
+    /** methods too big for the JIT that had their save sequences moved out */
+    private List<String> splitMethods = new LinkedList<String>();
+    private int numHelpers;
+
+    /**
+     * Drops the bytes of a state class no woven class uses any more; they
+     * are generated again if needed. The name stays reserved, as the class
+     * may have been defined already.
+     */
+    public static void forgetStateClass(String className) {
+        stateClasses.remove(className);
+    }
 
     public ClassWeaver(InputStream is, InstrumentationContext context) throws IOException {
+        this(is, context, WeavingOptions.getDefault());
+    }
+
+    public ClassWeaver(InputStream is, InstrumentationContext context,
+            WeavingOptions options) throws IOException {
+        this.options = options;
 		classFlow = new ClassFlow(is, context);
-        weave();
+        weave(classFlow.cr.b);
     }
     
     public ClassWeaver(String className, InstrumentationContext context) throws IOException {
+        options = WeavingOptions.getDefault();
 		classFlow = new ClassFlow(className, context);
-        weave();
+        weave(classFlow.cr.b);
     }
     
-    private void weave() throws KilimException {
+    /**
+     * @param original the bytes of the class as read, which the analysis
+     * doesn't keep
+     */
+    private void weave(byte[] original) throws KilimException {
+        classFlow.inlineCalls = options.inlineCalls();
+        classFlow.loopBudget = options.loopBudget();
         classFlow.analyze(false);
         if (classFlow.isPausable() && needsWeaving()) {
             ClassWriter cw = new ClassWriter(false);
-            accept(cw);
-            addClassInfo(new ClassInfo(classFlow.getClassName(), cw.toByteArray()));
+            byte[] bytes;
+            if ((classFlow.version & 0xFFFF) >= V1_6) {
+                StackMapAdapter sma = new StackMapAdapter(cw, classFlow);
+                accept(sma);
+                bytes = cw.toByteArray();
+                if (sma.isIncomplete()) {
+                    downgradeToV1_6(bytes, original);
+                }
+            } else {
+                accept(cw);
+                bytes = cw.toByteArray();
+            }
+            addClassInfo(new ClassInfo(classFlow.getClassName(), bytes));
         }
     }
 
+    /**
+     * Marks a class some of whose methods have no frames as version 50, the
+     * last one that may be verified by type inference. Refuses classes that
+     * may use later features: interfaces (methods with code), and classes
+     * whose original bytes show method handles, invokedynamic or nestmates.
+     */
+    private void downgradeToV1_6(byte[] bytes, byte[] original) {
+        if ((classFlow.version & 0xFFFF) > V1_6) {
+            String feature = classFlow.isInterface() ? "interface methods with code"
+                    : ClassScanner.findPostV1_6Feature(original);
+            if (feature != null) {
+                throw new KilimException("Can't compute stack map frames of "
+                        + classFlow.getClassName() + ", nor mark it version 50: it uses "
+                        + feature);
+            }
+        }
+        // u4 magic, u2 minor_version, u2 major_version
+        bytes[4] = 0;
+        bytes[5] = 0;
+        bytes[6] = (byte) (V1_6 >> 8);
+        bytes[7] = (byte) V1_6;
+    }
+
     private void accept(final ClassVisitor cv) {
         ClassFlow cf = classFlow;
         // visits header
@@ -127,6 +199,25 @@ public class ClassWeaver {
     public List<ClassInfo>  getClassInfos() {
         return classInfoList;
     }
+
+    /**
+     * @return the methods whose woven code was over
+     * MethodWeaver.HUGE_METHOD_LIMIT bytes and got split, e.g.
+     * "com.example.Actor.run()V: 9310 -> 6125 bytes". A size that is still
+     * over the limit means that the method stays interpreted.
+     */
+    public List<String> getSplitMethods() {
+        return splitMethods;
+    }
+
+    void addSplitMethod(String method, int size, int newSize) {
+        splitMethods.add(classFlow.getClassName() + "." + method
+                + ": " + size + " -> " + newSize + " bytes");
+    }
+
+    String newHelperName() {
+        return "kilim$save$" + numHelpers++;
+    }
     
     /*
      * A method needs weaving ordinarily if it is marked pausable.
@@ -173,18 +264,43 @@ public class ClassWeaver {
      * 
      * If there's no data to store, we use the kilim.State class directly to
      * store the basic amount of data necessary to restore the stack.
+     * 
+     * With the exact-states option, the fields have the values' own types,
+     * and the class is named after a hash of the list of field types. Call
+     * sites saving the same types share it.
+     * 
+     * Every state class the woven code refers to is listed in getClassInfos(),
+     * even if an earlier weaver already produced it, so that the result of
+     * weaving a class is complete on its own (see kilim.osgi.WovenClassCache).
      */
 
     String createStateClass(ValInfoList valInfoList) {
-        int numByType[] = { 0, 0, 0, 0, 0 };
-        for (ValInfo vi : valInfoList) {
-            numByType[vi.vmt]++;
+        String className;
+        if (options.exactStates()) {
+            className = makeExactClassName(valInfoList);
+        } else {
+            int numByType[] = { 0, 0, 0, 0, 0 };
+            for (ValInfo vi : valInfoList) {
+                numByType[vi.vmt]++;
+            }
+            className = makeClassName(numByType);
         }
-        String className = makeClassName(numByType);
-        if (stateClasses.contains(className)) {
-            return className;
+        if (usedStateClasses.add(className)) {
+            byte[] bytes = stateClasses.get(className);
+            if (bytes == null) {
+                // Racing weavers generate identical bytes; keep the first
+                bytes = makeStateClass(className, valInfoList);
+                byte[] prev = stateClasses.putIfAbsent(className, bytes);
+                if (prev != null) {
+                    bytes = prev;
+                }
+            }
+            addClassInfo(new ClassInfo(className, bytes));
         }
-        stateClasses.add(className);
+        return className;
+    }
+
+    private byte[] makeStateClass(String className, ValInfoList valInfoList) {
         ClassWriter cw = new ClassWriter(false);
         cw.visit(V1_1, ACC_PUBLIC | ACC_FINAL, className, null, "kilim/State", null);
 
@@ -203,8 +319,7 @@ public class ClassWeaver {
         for (ValInfo vi : valInfoList) {
             cw.visitField(ACC_PUBLIC, vi.fieldName, vi.fieldDesc(), null, null);
         }
-        addClassInfo(new ClassInfo(className, cw.toByteArray()));
-        return className;
+        return cw.toByteArray();
     }
 
     private String makeClassName(int[] numByType) {
@@ -222,6 +337,33 @@ public class ClassWeaver {
         return sb.toString();
     }
 
+    public WeavingOptions getOptions() {
+        return options;
+    }
+
+    private String makeExactClassName(ValInfoList valInfoList) {
+        StringBuilder shapeBuf = new StringBuilder();
+        for (ValInfo vi : valInfoList) {
+            shapeBuf.append(vi.fieldDesc());
+        }
+        String shape = shapeBuf.toString();
+        // 64-bit FNV-1a; stable across runs so that names don't depend on
+        // the order in which classes get woven
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < shape.length(); i++) {
+            h ^= shape.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        String base = "kilim/states/T_" + Long.toHexString(h);
+        for (int n = 0;; n++) {
+            String className = (n == 0) ? base : base + "_" + n;
+            String existing = exactStateShapes.putIfAbsent(className, shape);
+            if (existing == null || existing.equals(shape)) {
+                return className;
+            }
+        }
+    }
+
     boolean isInterface() {
         return classFlow.isInterface();
     }
@@ -4,16 +4,14 @@
  * specified in the file "License"
  */
 package kilim.analysis;
-import java.lang.reflect.Method;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import kilim.Constants;
-import kilim.pausable;
-import kilim.osgi.AlreadyBeingInstrumentedError;
+import kilim.analysis.ClassSummary.MethodSummary;
 import kilim.osgi.InstrumentationContext;
-import kilim.osgi.InstrumentationHook;
 
-import org.objectweb.asm.Type;
-import org.objectweb.asm.tree.AnnotationNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 /**
  * Utility class to check if a method has been marked pausable
@@ -27,7 +25,7 @@ public class Detector {
 
     // Note that we don't have the kilim package itself in the following list.
     static final String[]                     STANDARD_DONT_CHECK_LIST = {
-            "java.", "javax."                                         };
+            "java/", "javax/"                                         };
 
     public static boolean isPausable(String className, String methodName,
             String desc, InstrumentationContext context) {
@@ -35,162 +33,119 @@ public class Detector {
     }
 
     /**
+     * Looks the method up in the flows of the classes being woven, or else
+     * in the summaries of the classes' bytes. No class is loaded.
+     * 
      * @return one of METHOD_NOT_FOUND, PAUSABLE_METHOD_FOUND, METHOD_NOT_PAUSABLE
      */
-    
     public static int getPausableStatus(String className, String methodName,
             String desc, InstrumentationContext context) 
     {
-        int ret = METHOD_NOT_FOUND;
         if (methodName.endsWith("init>")) {
             return METHOD_NOT_PAUSABLE; // constructors are not pausable.
         }
-        if (methodName.equals("staticContext"))
-        	System.out.println("Detector.getPausableStatus()");
-        ClassFlow cf = context.findClassFlow(className);
-        if (cf == null) {
-        	try {
-        		String dottedClassName = className.replace('/', '.');
-        		try {
-        			Class cl = InstrumentationHook.loadClass(dottedClassName);
-        	        cf = context.findClassFlow(className);
-        			if (cf == null) {
-        				Method m = findMethodInHierarchy(cl, methodName, desc);
-
-        				if (m != null) {
-        					ret = m.isAnnotationPresent(pausable.class) ? 
-        							PAUSABLE_METHOD_FOUND : METHOD_NOT_PAUSABLE;
-        				}
-        			}
-        		} catch (ClassNotFoundException ignore) {}
-        	} catch (AlreadyBeingInstrumentedError e) {
-        		cf = context.findClassFlow(className);
-        	}
-        }
-		if (ret == Detector.METHOD_NOT_FOUND && cf != null) {
-			MethodFlow mf = cf.methodsByName.get(methodName + "|" + desc);
-			if (mf == null) {
-				String sup = cf.superName;
-				if (sup != null) {
-					ret = getPausableStatus(sup, methodName, desc, context);
-					if (ret != METHOD_NOT_FOUND)
-						return ret;
-				}
-				if (cf.interfaces != null)
-					for (Object n : cf.interfaces) {
-						String name = (String) n;
-						ret = getPausableStatus(name, methodName, desc, context);
-						if (ret != METHOD_NOT_FOUND)
-							return ret;
-					}
-				return METHOD_NOT_FOUND;
-			}
-			ret = Detector.METHOD_NOT_PAUSABLE;
-			if (mf.isBridge()) {
-				MethodInsnNode call = mf.findOnlyCallInstruction();
-				if (call != null)
-					return getPausableStatus(call.owner, call.name, call.desc, context);
-			}
-			if (mf.isPausable())
-				ret = Detector.PAUSABLE_METHOD_FOUND;
-//			if (mf.visibleAnnotations != null)
-//				for (Object obj : mf.visibleAnnotations) {
-//					AnnotationNode an = (AnnotationNode) obj;
-//					if (an.desc.equals(Constants.D_PAUSABLE)) {
-//						ret = Detector.PAUSABLE_METHOD_FOUND;
-//						break;
-//					}
-//				}
-		}
-		return ret;
+        return getPausableStatus(className, methodName, desc, context, context);
     }
-    
-    public static Method findMethodInHierarchy(Class cl, String methodName,
-            String desc) {
-        if (cl == null)  return null;
-//        System.out.println("Detector.findMethodInHierarchy(" + cl.getSimpleName() + "." + methodName +")");
-        
-        for (Method om : cl.getDeclaredMethods()) {
-            if (om.getName().equals(methodName) && Type.getMethodDescriptor(om).equals(desc)) {
-                if (om.isBridge()) continue;
-                return om;
-            }
-        }
 
-        if (cl == Object.class)
-            return null;
+    private static final AtomicLong cacheHits   = new AtomicLong();
+    private static final AtomicLong cacheMisses = new AtomicLong();
 
-        Method m = findMethodInHierarchy(cl.getSuperclass(), methodName, desc);
-        if (m != null)
-            return m;
-        for (Class ifcl : cl.getInterfaces()) {
-            m = findMethodInHierarchy(ifcl, methodName, desc);
-            if (m != null)
-                return m;
-        }
-        return null;
+    /**
+     * @return how many lookups were answered from the resolvers' memo of
+     *         earlier answers (including methods not found)
+     */
+    public static long getCacheHits() {
+        return cacheHits.get();
     }
 
-    public static String D_FIBER_ = Constants.D_FIBER + ")";
-    public static int _getPausableStatus(String className, String methodName,
-            String desc) {
-        int ret;
-        className = className.replace('/', '.');
-        try {
-            Class cl = InstrumentationHook.loadClass(className);
-            Method m = findMethodInHierarchy(cl, methodName, desc);
-            if (m == null) {
-                desc = desc.replace(")", D_FIBER_);
-                m = findMethodInHierarchy(cl, methodName, desc);
-            }
-            ret = (m == null ) ? METHOD_NOT_FOUND : 
-                   m.isAnnotationPresent(pausable.class) ? 
-                           PAUSABLE_METHOD_FOUND : METHOD_NOT_PAUSABLE;
-        } catch (ClassNotFoundException cnfe) {
-            ret = METHOD_NOT_FOUND;
-        }
-        System.out.println("Detector : " + className + methodName + desc + " -- "  + statusToStr(ret));
-        return ret;
+    public static long getCacheMisses() {
+        return cacheMisses.get();
     }
-    private static String statusToStr(int st) {
-        switch (st) {
-        case METHOD_NOT_FOUND : return "not found";
-        case PAUSABLE_METHOD_FOUND : return "pausable";
-        case METHOD_NOT_PAUSABLE : return "not pausable";
-        default: throw new AssertionError("Unknown status");
+
+    /**
+     * @param resolver sees the classes the way the class that refers to
+     *        className does
+     */
+    private static int getPausableStatus(String className, String methodName,
+            String desc, InstrumentationContext context, ClassResolver resolver) {
+        ConcurrentHashMap<String, Integer> cache = resolver.getPausableStatusCache();
+        String key = className + '.' + methodName + desc;
+        Integer status = cache.get(key);
+        if (status != null) {
+            cacheHits.incrementAndGet();
+            return status;
         }
+        cacheMisses.incrementAndGet();
+        int ret = resolvePausableStatus(className, methodName, desc, context, resolver);
+        cache.put(key, ret);
+        return ret;
     }
 
-    public static Method _findMethodInHierarchy(Class cl, String methodName,
-            String desc) {
-        if (cl == null)
-            return null;
-        if (notPausable(cl.getName()) || methodName.equals("<init>")
-                || methodName.equals("<clinit>"))
-            return null;
-
-        for (Method om : cl.getDeclaredMethods()) {
-            if (om.getName().equals(methodName) && Type.getMethodDescriptor(om).equals(desc)) {
-                return om;
+    private static int resolvePausableStatus(String className, String methodName,
+            String desc, InstrumentationContext context, ClassResolver resolver) {
+        ClassFlow cf = context.findClassFlow(className);
+        if (cf != null) {
+            MethodFlow mf = cf.methodsByName.get(methodName + "|" + desc);
+            if (mf == null) {
+                return getInheritedStatus(cf.superName, cf.interfaces.toArray(),
+                        methodName, desc, context, resolver);
+            }
+            if (mf.isBridge()) {
+                MethodInsnNode call = mf.findOnlyCallInstruction();
+                if (call != null)
+                    return getPausableStatus(call.owner, call.name, call.desc, context, resolver);
             }
+            return mf.isPausable() ? PAUSABLE_METHOD_FOUND : METHOD_NOT_PAUSABLE;
         }
 
-        if (cl == Object.class)
-            return null;
+        ClassSummary cs = resolver.getClassSummary(className);
+        if (cs == null) {
+            return METHOD_NOT_FOUND;
+        }
+        MethodSummary ms = cs.getMethod(methodName, desc);
+        if (ms == null && cs.isWoven) {
+            // woven ahead of time: pausable methods take the fiber as well
+            ms = cs.getMethod(methodName, desc.replace(")", D_FIBER_));
+        }
+        if (ms == null) {
+            return getInheritedStatus(cs.superName, cs.interfaces, methodName,
+                    desc, context, cs.resolver);
+        }
+        if (ms.isBridge && ms.callOwner != null) {
+            return getPausableStatus(ms.callOwner, ms.callName, ms.callDesc,
+                    context, cs.resolver);
+        }
+        return (ms.isPausable && !notPausable(className)) ? PAUSABLE_METHOD_FOUND
+                : METHOD_NOT_PAUSABLE;
+    }
 
-        Method m = findMethodInHierarchy(cl.getSuperclass(), methodName, desc);
-        if (m != null)
-            return m;
-        for (Class ifcl : cl.getInterfaces()) {
-            m = findMethodInHierarchy(ifcl, methodName, desc);
-            if (m != null)
-                return m;
+    private static int getInheritedStatus(String superName, Object[] interfaces,
+            String methodName, String desc, InstrumentationContext context,
+            ClassResolver resolver) {
+        int ret;
+        if (superName != null) {
+            ret = getPausableStatus(superName, methodName, desc, context, resolver);
+            if (ret != METHOD_NOT_FOUND)
+                return ret;
         }
-        return null;
+        if (interfaces != null) {
+            for (Object name : interfaces) {
+                ret = getPausableStatus((String) name, methodName, desc, context, resolver);
+                if (ret != METHOD_NOT_FOUND)
+                    return ret;
+            }
+        }
+        return METHOD_NOT_FOUND;
     }
 
-    static String[] dontCheckList = null;
+    public static String D_FIBER_ = Constants.D_FIBER + ")";
+
+    static volatile String[] dontCheckList = null;
 
+    /**
+     * @param name of a class, with slashes. Its package is listed in
+     *        kilim.notPausablePackages (or is java/javax).
+     */
     private static boolean notPausable(String name) {
         if (dontCheckList == null) {
             initDontCheckList();
@@ -202,7 +157,12 @@ public class Detector {
         return false;
     }
 
+    /*
+     * May run in several weaving threads at once; each builds its own list
+     * and publishes it complete.
+     */
     private static void initDontCheckList() {
+        String[] list = null;
         try {
             String pkgs = System.getProperty("kilim.notPausablePackages");
             if (pkgs != null) {
@@ -212,19 +172,20 @@ public class Detector {
                     if (name.endsWith(".*")) {
                         // remove the '*'
                         name = name.substring(0, name.length() - 2);
-                        pkgList[i] = name;
                     }
+                    pkgList[i] = name.replace('.', '/');
                 }
-                dontCheckList = new String[pkgList.length
+                list = new String[pkgList.length
                         + STANDARD_DONT_CHECK_LIST.length];
-                System.arraycopy(pkgList, 0, dontCheckList, 0, pkgList.length);
-                System.arraycopy(pkgList, pkgList.length, STANDARD_DONT_CHECK_LIST, 0, STANDARD_DONT_CHECK_LIST.length);
+                System.arraycopy(pkgList, 0, list, 0, pkgList.length);
+                System.arraycopy(STANDARD_DONT_CHECK_LIST, 0, list, pkgList.length, STANDARD_DONT_CHECK_LIST.length);
             }
         } catch (Exception ignore) {
         }
 
-        if (dontCheckList == null) {
-            dontCheckList = STANDARD_DONT_CHECK_LIST;
+        if (list == null) {
+            list = STANDARD_DONT_CHECK_LIST;
         }
+        dontCheckList = list;
     }
 }
@@ -25,6 +25,9 @@ import org.objectweb.asm.tree.MethodNode;
  *
  */
 public class Frame {
+    /** The creation site of "this"; the parameters follow */
+    static final int PARAM_SITE = 100000;
+
     Value[] locals;
     Value[] stack;
     int stacklen = 0;
@@ -66,8 +69,10 @@ public class Frame {
                 Value va = ist[i];
                 Value vb = st[i];
                 if (va == vb || va.equals(vb)) continue;
-                Value newval = va.merge(vb);
-                if (newval != va) {
+                // merge into the current value; the result may well be
+                // the incoming value, which still means a change here.
+                Value newval = vb.merge(va);
+                if (newval != vb) {
                     if (nst == null) nst = dupArray(st);
                     nst[i] = newval;
                 }
@@ -121,7 +126,7 @@ public class Frame {
             setLocal(i, Value.V_UNDEFINED);
         }
         int local = 0;
-        int paramPos = 100000;
+        int paramPos = PARAM_SITE;
         if ((method.access & ACC_STATIC) == 0) {
             // 0th local is "this"
             setLocal(local++, Value.make(paramPos++,classDesc));
@@ -235,6 +240,18 @@ public class Frame {
         stacklen -= n;
     }
     
+    /**
+     * Replaces every occurrence of a value, in the locals and on the stack
+     */
+    void replace(Value old, Value v) {
+        for (int i = 0; i < locals.length; i++) {
+            if (locals[i].equals(old)) locals[i] = v;
+        }
+        for (int i = 0; i < stacklen; i++) {
+            if (stack[i].equals(old)) stack[i] = v;
+        }
+    }
+    
     void clearStack() {
         stacklen = 0;
     }
@@ -0,0 +1,263 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.analysis;
+import static kilim.Constants.D_TASK;
+import static kilim.Constants.TASK_CLASS;
+import static org.objectweb.asm.Opcodes.ACC_SYNCHRONIZED;
+import static org.objectweb.asm.Opcodes.ATHROW;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.MONITORENTER;
+import static org.objectweb.asm.Opcodes.MONITOREXIT;
+import static org.objectweb.asm.Opcodes.RET;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+
+/**
+ * Puts a yield point at the head of every loop of the pausable methods of
+ * a class, before they are analyzed (the yield-loops weaving option):
+ * <pre>
+ *   HEAD:
+ *     invokestatic Task.getCurrentTask()  ;; woven into aload fiber; getfield task
+ *     push budget
+ *     invokevirtual Task.loopBudgetSpent(int)
+ *     ifeq BODY
+ *     invokestatic Task.yield()
+ *   BODY:
+ *     ... original loop head
+ * </pre>
+ * A loop head is the target of a backward branch. Heads with anything on
+ * the operand stack (which javac doesn't produce) are left alone, so that
+ * the yield doesn't have to save the stack. So are heads where a monitor
+ * is held, and all of a synchronized method: a task must not pause while
+ * it holds a monitor, since it may resume on another thread, and the
+ * monitor would stay locked in the meantime.
+ */
+class LoopYielder {
+    private final ClassFlow classFlow;
+    private final int       budget;
+
+    LoopYielder(ClassFlow classFlow, int budget) {
+        this.classFlow = classFlow;
+        this.budget = budget;
+    }
+
+    /**
+     * Replaces the MethodFlows of pausable methods that have loops with new
+     * ones that have the yield points.
+     */
+    @SuppressWarnings("unchecked")
+    void addYields() {
+        List<Object> methods = classFlow.methods;
+        for (int i = 0; i < methods.size(); i++) {
+            MethodFlow orig = (MethodFlow) methods.get(i);
+            if (!orig.isPausable() || orig.isAbstract() || orig.isBridge()
+                    || (orig.access & ACC_SYNCHRONIZED) != 0) {
+                continue;
+            }
+            HashSet<Label> heads = getLoopHeads(orig);
+            if (heads.isEmpty()) {
+                continue;
+            }
+            MethodFlow mf = new MethodFlow(classFlow, orig.access, orig.name, orig.desc,
+                    orig.signature, ClassWeaver.toStringArray(orig.exceptions),
+                    classFlow.getContext());
+            orig.accept(new YieldAdapter(mf, heads));
+            mf.postProcess();
+            methods.set(i, mf);
+            classFlow.methodsByName.put(mf.name + "|" + mf.desc, mf);
+        }
+    }
+
+    /**
+     * @return the targets of backward branches that have an empty stack and
+     *         hold no monitor
+     */
+    private HashSet<Label> getLoopHeads(MethodFlow mf) {
+        HashSet<Label> heads = new HashSet<Label>();
+        boolean hasMonitors = false;
+        for (int i = 0; i < mf.instructions.size(); i++) {
+            AbstractInsnNode ain = (AbstractInsnNode) mf.instructions.get(i);
+            if (ain.getOpcode() == MONITORENTER) {
+                hasMonitors = true;
+            } else if (ain instanceof JumpInsnNode) {
+                addIfBackward(mf, heads, i, ((JumpInsnNode) ain).label);
+            } else if (ain instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode tsin = (TableSwitchInsnNode) ain;
+                addIfBackward(mf, heads, i, tsin.dflt);
+                for (Object l : tsin.labels) {
+                    addIfBackward(mf, heads, i, (Label) l);
+                }
+            } else if (ain instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) ain;
+                addIfBackward(mf, heads, i, lsin.dflt);
+                for (Object l : lsin.labels) {
+                    addIfBackward(mf, heads, i, (Label) l);
+                }
+            }
+        }
+        if (hasMonitors) {
+            int[] monitors = getMonitorDepths(mf);
+            for (Iterator<Label> it = heads.iterator(); it.hasNext();) {
+                if (monitors[mf.getLabelPosition(it.next())] != 0) {
+                    it.remove();
+                }
+            }
+        }
+        if (heads.isEmpty()) {
+            return heads;
+        }
+        MethodNode mn = new MethodNode(mf.access, mf.name, mf.desc, null, null);
+        mf.accept(mn);
+        org.objectweb.asm.tree.analysis.Frame[] frames;
+        try {
+            frames = new Analyzer(new BasicInterpreter()).analyze(classFlow.name, mn);
+        } catch (AnalyzerException e) {
+            heads.clear();
+            return heads;
+        }
+        for (int i = 0; i < frames.length; i++) {
+            Object o = mn.instructions.get(i);
+            if (o instanceof LabelNode && frames[i] != null && frames[i].getStackSize() > 0) {
+                heads.remove(((LabelNode) o).label);
+            }
+        }
+        return heads;
+    }
+
+    /**
+     * @return the number of monitors held before each instruction, -1 for
+     *         unreachable instructions. Where paths disagree, the larger
+     *         number is kept.
+     */
+    private static int[] getMonitorDepths(MethodFlow mf) {
+        int n = mf.instructions.size();
+        int[] depths = new int[n];
+        Arrays.fill(depths, -1);
+        ArrayList<Integer> work = new ArrayList<Integer>();
+        merge(depths, work, 0, 0);
+        while (!work.isEmpty()) {
+            int i = work.remove(work.size() - 1);
+            int d = depths[i];
+            AbstractInsnNode ain = (AbstractInsnNode) mf.instructions.get(i);
+            int opcode = ain.getOpcode();
+            // a handler is entered with the monitors held at the throw
+            for (Object o : mf.tryCatchBlocks) {
+                TryCatchBlockNode tcb = (TryCatchBlockNode) o;
+                if (mf.getLabelPosition(tcb.start) <= i && i < mf.getLabelPosition(tcb.end)) {
+                    merge(depths, work, mf.getLabelPosition(tcb.handler), d);
+                }
+            }
+            if (opcode == MONITORENTER) {
+                d = Math.min(d + 1, n); // bounded, should a loop keep locking
+            } else if (opcode == MONITOREXIT) {
+                d = Math.max(d - 1, 0);
+            }
+            if (ain instanceof JumpInsnNode) {
+                merge(depths, work, mf.getLabelPosition(((JumpInsnNode) ain).label), d);
+                if (opcode == GOTO) {
+                    continue;
+                }
+            } else if (ain instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode tsin = (TableSwitchInsnNode) ain;
+                merge(depths, work, mf.getLabelPosition(tsin.dflt), d);
+                for (Object l : tsin.labels) {
+                    merge(depths, work, mf.getLabelPosition((Label) l), d);
+                }
+                continue;
+            } else if (ain instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) ain;
+                merge(depths, work, mf.getLabelPosition(lsin.dflt), d);
+                for (Object l : lsin.labels) {
+                    merge(depths, work, mf.getLabelPosition((Label) l), d);
+                }
+                continue;
+            } else if ((opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW
+                    || opcode == RET) {
+                continue;
+            }
+            if (i + 1 < n) {
+                merge(depths, work, i + 1, d);
+            }
+        }
+        return depths;
+    }
+
+    /** Raises the depth at pos to d, and queues pos if it changed */
+    private static void merge(int[] depths, ArrayList<Integer> work, int pos, int d) {
+        if (pos < depths.length && depths[pos] < d) {
+            depths[pos] = d;
+            work.add(pos);
+        }
+    }
+
+    private static void addIfBackward(MethodFlow mf, HashSet<Label> heads, int pos, Label l) {
+        if (mf.getLabelPosition(l) <= pos) {
+            heads.add(l);
+        }
+    }
+
+    /**
+     * Copies a method into a new MethodFlow, with a yield point after each
+     * loop head.
+     */
+    private class YieldAdapter extends MethodAdapter {
+        private final MethodFlow     mf;
+        private final HashSet<Label> heads;
+
+        YieldAdapter(MethodFlow mf, HashSet<Label> heads) {
+            super(mf);
+            this.mf = mf;
+            this.heads = heads;
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            PausableInliner.visitLabel(mf, label);
+            if (heads.contains(label)) {
+                Label bodyLabel = new Label();
+                mf.visitMethodInsn(INVOKESTATIC, TASK_CLASS, "getCurrentTask", "()" + D_TASK);
+                if (budget <= Short.MAX_VALUE) {
+                    mf.visitIntInsn(SIPUSH, budget);
+                } else {
+                    mf.visitLdcInsn(new Integer(budget));
+                }
+                mf.visitMethodInsn(INVOKEVIRTUAL, TASK_CLASS, "loopBudgetSpent", "(I)Z");
+                mf.visitJumpInsn(IFEQ, bodyLabel);
+                mf.visitMethodInsn(INVOKESTATIC, TASK_CLASS, "yield", "()V");
+                mf.visitLabel(bodyLabel);
+            }
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            super.visitMaxs(Math.max(maxStack, 2), maxLocals);
+        }
+    }
+}
@@ -13,6 +13,7 @@ import kilim.osgi.InstrumentationContext;
 import static kilim.analysis.BasicBlock.COALESCED;
 import static kilim.analysis.BasicBlock.ENQUEUED;
 import static kilim.analysis.BasicBlock.INLINE_CHECKED;
+import static kilim.analysis.BasicBlock.TRY_BOUNDARY;
 import static kilim.Constants.D_PAUSABLE;
 import static org.objectweb.asm.Opcodes.ACC_STATIC;
 import static org.objectweb.asm.Opcodes.ACC_VOLATILE;
@@ -341,6 +342,11 @@ public class MethodFlow extends MethodNode {
 	 * more detail.
 	 */
 	private void consolidateBasicBlocks() {
+		for (Object o : tryCatchBlocks) {
+			TryCatchBlockNode tcb = (TryCatchBlockNode) o;
+			markTryBoundary(tcb.start);
+			markTryBoundary(tcb.end);
+		}
 		BBList newBBs = new BBList(basicBlocks.size());
 		int pos = 0;
 		for (BasicBlock bb : basicBlocks) {
@@ -356,6 +362,13 @@ public class MethodFlow extends MethodNode {
 		assert checkNoBasicBlockLeftBehind();
 	}
 
+	private void markTryBoundary(Label l) {
+		BasicBlock bb = getBasicBlock(l);
+		if (bb != null) { // null past the last instruction
+			bb.setFlag(TRY_BOUNDARY);
+		}
+	}
+
 	private boolean checkNoBasicBlockLeftBehind() { // like
 		// "no child left behind"
 		ArrayList<BasicBlock> bbs = basicBlocks;
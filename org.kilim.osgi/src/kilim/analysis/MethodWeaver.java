@@ -19,9 +19,12 @@ import static org.objectweb.asm.Opcodes.ASTORE;
 import static org.objectweb.asm.Opcodes.DUP;
 import static org.objectweb.asm.Opcodes.GETFIELD;
 import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.ISTORE;
 import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SIPUSH;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -31,9 +34,15 @@ import org.objectweb.asm.Attribute;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.IincInsnNode;
 import org.objectweb.asm.tree.LineNumberNode;
 import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
 
 /**
  * This class takes the basic blocks from a MethodFlow and generates 
@@ -42,6 +51,12 @@ import org.objectweb.asm.tree.LocalVariableNode;
 
 public class MethodWeaver {
 
+    /**
+     * HotSpot doesn't compile methods with more bytecode than this
+     * (-XX:HugeMethodLimit), so they run interpreted forever.
+     */
+    static final int              HUGE_METHOD_LIMIT = 8000;
+
     private ClassWeaver           classWeaver;
 
     private MethodFlow            methodFlow;
@@ -60,6 +75,24 @@ public class MethodWeaver {
      * fiberVar.
      */
     private int                   fiberVar;
+
+    /**
+     * Holds the fiber's depth (Fiber.iStack) as it was on entry to this
+     * method, so that a catch handler can reset the fiber to this frame
+     * after an exception has skipped the up() calls of the frames below.
+     * Only allocated (right after fiberVar) if some pausable call is
+     * covered by a handler; -1 otherwise.
+     */
+    private int                   depthVar = -1;
+
+    /**
+     * With the fast-calls option, holds fiber.pc as it was on entry to this
+     * method, that is, non-zero if the method was entered to rewind the
+     * stack and its state has not been restored yet. Until then up() must
+     * be called after every pausable call. Allocated after fiberVar and
+     * depthVar; -1 without the option.
+     */
+    private int                   rewindVar = -1;
     private int                   numWordsInSig;
     private ArrayList<CallWeaver> callWeavers = new ArrayList<CallWeaver>(5);
 
@@ -69,6 +102,14 @@ public class MethodWeaver {
         isPausable = mf.isPausable();
         fiberVar = methodFlow.maxLocals; // alloc fresh var 
         maxVars = fiberVar + 1;
+        if (!mf.isAbstract() && hasPausableCallInTry()) {
+            depthVar = fiberVar + 1;
+            maxVars = depthVar + 1;
+        }
+        if (!mf.isAbstract() && getOptions().fastCalls()) {
+            rewindVar = maxVars;
+            maxVars = rewindVar + 1;
+        }
         maxStack = methodFlow.maxStack + 1; // plus Fiber 
         if (!mf.isAbstract()) {
             createCallWeavers();
@@ -88,13 +129,89 @@ public class MethodWeaver {
         MethodVisitor mv = cv.visitMethod(mf.access, mf.name, desc, sig, exceptions);
         if (!mf.isAbstract()) {
             if (mf.isPausable()) {
-                accept(mv);
+                MethodNode mn = new MethodNode(mf.access, mf.name, desc, sig, exceptions);
+                accept(mn);
+                int size = codeSize(mn);
+                boolean split = size > HUGE_METHOD_LIMIT && canSplit();
+                if (split) {
+                    for (CallWeaver cw : callWeavers) {
+                        if (!cw.savesNothing()) {
+                            cw.saveHelperName = classWeaver.newHelperName();
+                        }
+                    }
+                    mn = new MethodNode(mf.access, mf.name, desc, sig, exceptions);
+                    accept(mn);
+                    classWeaver.addSplitMethod(mf.name + mf.desc, size, codeSize(mn));
+                }
+                mn.accept(mv);
+                if (split) {
+                    for (CallWeaver cw : callWeavers) {
+                        if (cw.saveHelperName != null) {
+                            cw.genSaveHelper(cv);
+                        }
+                    }
+                }
             } else {
                 mf.accept(mv);
             }
         }
     }
 
+    /**
+     * The save sequences of a method's call sites may be moved into helper
+     * methods (see CallWeaver.genSaveHelper), except in interfaces, which
+     * can't have private methods in the class versions we produce. The
+     * rewind and restore sequences write the method's own locals, so they
+     * have to stay.
+     */
+    private boolean canSplit() {
+        return !classWeaver.isInterface() && callWeavers.size() > 0;
+    }
+
+    /**
+     * The bytecode size of a method as ClassWriter will write it, give or
+     * take ldc forms and switch padding (counted at their longest).
+     */
+    static int codeSize(MethodNode mn) {
+        int size = 0;
+        for (Object o : mn.instructions) {
+            AbstractInsnNode ain = (AbstractInsnNode) o;
+            switch (ain.getType()) {
+                case AbstractInsnNode.LABEL:
+                    break;
+                case AbstractInsnNode.INSN:
+                    size += 1;
+                    break;
+                case AbstractInsnNode.INT_INSN:
+                    size += ain.getOpcode() == SIPUSH ? 3 : 2;
+                    break;
+                case AbstractInsnNode.VAR_INSN:
+                    size += ((VarInsnNode) ain).var > 255 ? 4 : 2;
+                    break;
+                case AbstractInsnNode.IINC_INSN:
+                    IincInsnNode iinc = (IincInsnNode) ain;
+                    size += iinc.var > 255 || iinc.incr != (byte) iinc.incr ? 6 : 3;
+                    break;
+                case AbstractInsnNode.METHOD_INSN:
+                    size += ain.getOpcode() == INVOKEINTERFACE ? 5 : 3;
+                    break;
+                case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                    size += 4;
+                    break;
+                case AbstractInsnNode.TABLESWITCH_INSN:
+                    size += 16 + 4 * ((TableSwitchInsnNode) ain).labels.size();
+                    break;
+                case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                    size += 12 + 8 * ((LookupSwitchInsnNode) ain).labels.size();
+                    break;
+                default: // jumps, ldc, type and field instructions
+                    size += 3;
+                    break;
+            }
+        }
+        return size;
+    }
+
     void accept(MethodVisitor mv) {
         visitAttrs(mv);
         visitCode(mv);
@@ -209,6 +326,15 @@ public class MethodWeaver {
         }
     }
 
+    private boolean hasPausableCallInTry() {
+        for (BasicBlock bb : methodFlow.getBasicBlocks()) {
+            if (bb.isPausable() && !bb.isGetCurrentTask() && bb.handlers.size() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private List<CallWeaver> getCallsUnderCatchBlock(BasicBlock catchBB) {
         List<CallWeaver> cwList = null; // create it lazily
         for (CallWeaver cw: callWeavers) {
@@ -300,7 +426,13 @@ public class MethodWeaver {
      *     aload lastVar
      *     dup
      *     astore fiberVar 
-     *     switch (fiber.pc) { 
+     *     [dup
+     *      getfield iStack
+     *      istore depthVar]    ;; only if there are pausable calls in a try block
+     *     getfield pc
+     *     [dup
+     *      istore rewindVar]   ;; only with the fast-calls option
+     *     switch (pc) { 
      *       default: 0: START 
      *       1: F_PASS_DOWN 
      *       2: FS_PASS_DOWN 
@@ -311,10 +443,7 @@ public class MethodWeaver {
         assert isPausable : "MethodWeaver.genPrelude called for nonPausable method";
         MethodFlow mf = methodFlow;
         // load fiber from last var
-        int lastVar = getNumWordsInSig();
-        if (!mf.isStatic()) {
-            lastVar++;
-        }
+        int lastVar = getFiberParamVar();
 
         if (callWeavers.size() == 0) {
             // Can happen if Task.getCurrentTask() is the only pausable method
@@ -328,8 +457,17 @@ public class MethodWeaver {
             mv.visitInsn(DUP); // for storing into fiberVar
             mv.visitVarInsn(ASTORE, getFiberVar());
         }
+        if (depthVar != -1) {
+            mv.visitInsn(DUP);
+            mv.visitFieldInsn(GETFIELD, FIBER_CLASS, "iStack", D_INT);
+            mv.visitVarInsn(ISTORE, depthVar);
+        }
         
         mv.visitFieldInsn(GETFIELD, FIBER_CLASS, "pc", D_INT);
+        if (rewindVar != -1) {
+            mv.visitInsn(DUP);
+            mv.visitVarInsn(ISTORE, rewindVar);
+        }
         // The prelude doesn't need more than two words in the stack.
         // The callweaver gen* methods may need more. 
         ensureMaxStack(2);
@@ -359,6 +497,15 @@ public class MethodWeaver {
         mv.visitLabel(startLabel);
     }
 
+    /**
+     * The local var of the Fiber parameter, the first one past the
+     * original parameters (and "this").
+     */
+    int getFiberParamVar() {
+        int ret = getNumWordsInSig();
+        return methodFlow.isStatic() ? ret : ret + 1;
+    }
+
     /*
      * The number of words in the argument; doubles/longs occupy
      * two local vars.
@@ -383,10 +530,12 @@ public class MethodWeaver {
      * fiber.curState gives us access to that state. 
      * 
      * ; Figure out which pausable method could have caused this.
+     * ; The exception skipped the up() calls of the frames in between, so
+     * ; upEx resets the fiber to the depth recorded on entry to this method.
      * 
-     * switch (fiber.upEx()) {
+     * switch (fiber.upEx(depthVar)) {
      *    0: goto NORMAL_EXCEPTION_HANDLING;
-     *    2: goto RESTORE_F
+     *    2: goto RESTORE_F   ;; keyed on the call's pc, see getPC()
      * }
      * RESTORE_F:
      *   if (fiber.curStatus == HAS_STATE) {
@@ -401,14 +550,19 @@ public class MethodWeaver {
         mv.visitLabel(bb.startLabel);
         Label resumeLabel = new Label();
         VMType.loadVar(mv, VMType.TOBJECT, getFiberVar());
-        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "upEx", "()I");
-        // fiber.pc is on stack
+        VMType.loadVar(mv, VMType.TINT, depthVar);
+        mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "upEx", "(I)I");
+        // fiber.pc is on stack. It identifies the call among all of this
+        // method's pausable calls, while only those in cwList can get here.
+        int[] keys = new int[cwList.size() + 1];
         Label[] labels = new Label[cwList.size() + 1];
+        keys[0] = 0;
         labels[0] = resumeLabel;
         for (int i = 0; i < cwList.size(); i++) {
+            keys[i + 1] = getPC(cwList.get(i)); // ascending, like callWeavers
             labels[i + 1] = new Label();
         }
-        mv.visitTableSwitchInsn(0, cwList.size(), resumeLabel, labels);
+        mv.visitLookupSwitchInsn(resumeLabel, keys, labels);
         int i = 1;
         for (CallWeaver cw: cwList) {
             if (i > 1) {
@@ -432,6 +586,14 @@ public class MethodWeaver {
         return fiberVar; // The first available slot
     }
 
+    int getDepthVar() {
+        return depthVar;
+    }
+
+    int getRewindVar() {
+        return rewindVar;
+    }
+
     void visitTryCatchBlocks(MethodVisitor mv) {
         MethodFlow mf = methodFlow;
         ArrayList<BasicBlock> bbs = mf.getBasicBlocks();
@@ -466,6 +628,15 @@ public class MethodWeaver {
         return 0;
     }
 
+    /** internal name of the class being woven */
+    String getClassName() {
+        return classWeaver.classFlow.name;
+    }
+
+    WeavingOptions getOptions() {
+        return classWeaver.getOptions();
+    }
+
     public String createStateClass(ValInfoList valInfoList) {
         return classWeaver.createStateClass(valInfoList);
     }
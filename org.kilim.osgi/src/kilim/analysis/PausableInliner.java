@@ -0,0 +1,372 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.analysis;
+import static kilim.Constants.D_FIBER;
+import static kilim.Constants.TASK_CLASS;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_NATIVE;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_SYNCHRONIZED;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.JSR;
+import static org.objectweb.asm.Opcodes.NOP;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.RET;
+import static org.objectweb.asm.Opcodes.RETURN;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+
+/**
+ * Copies the bodies of small pausable methods of a class into the pausable
+ * methods of the same class that call them, before they are analyzed (the
+ * inline-calls weaving option). The callee's pausable calls then become
+ * the caller's own, so the callee's frame (its down() and up(), its state
+ * and its rewind) is gone. The callee stays as it is for other callers.
+ *
+ * Only calls that can't be overridden are inlined: static, private or
+ * final methods of the class itself, that aren't synchronized and have no
+ * exception handlers or subroutines. Each must be at most MAX_CALLEE_SIZE
+ * bytes of code, and no caller grows by more than MAX_GROWTH bytes. Callees
+ * are inlined as they are in the class file; calls in their bodies are not
+ * inlined in turn.
+ *
+ * The arguments are stored into locals past the caller's own, which all
+ * inlined bodies of a caller share. The callee's returns become jumps to
+ * the end of its body, which is why we insist that a return leaves nothing
+ * on the stack but the return value. An inlined body has no frame of its
+ * own in stack traces.
+ */
+class PausableInliner {
+    /** Largest callee inlined, in bytes of code; HotSpot's MaxInlineSize */
+    static final int MAX_CALLEE_SIZE = 35;
+
+    /** Most code inlined into any one caller, in bytes */
+    static final int MAX_GROWTH      = 400;
+
+    private final ClassFlow classFlow;
+
+    /** callee -> whether it may be inlined */
+    private final HashMap<MethodFlow, Boolean> inlinable = new HashMap<MethodFlow, Boolean>();
+
+    PausableInliner(ClassFlow classFlow) {
+        this.classFlow = classFlow;
+    }
+
+    /**
+     * Replaces the MethodFlows of callers of inlinable methods with new ones
+     * that have the callees' code in place of the calls.
+     */
+    @SuppressWarnings("unchecked")
+    void inlineCalls() {
+        List<Object> methods = classFlow.methods;
+        for (int i = 0; i < methods.size(); i++) {
+            MethodFlow caller = (MethodFlow) methods.get(i);
+            if (!caller.isPausable() || caller.isAbstract() || caller.isBridge()
+                    || !hasInlinableCall(caller)) {
+                continue;
+            }
+            MethodFlow mf = new MethodFlow(classFlow, caller.access, caller.name, caller.desc,
+                    caller.signature, ClassWeaver.toStringArray(caller.exceptions),
+                    classFlow.getContext());
+            caller.accept(new CallerAdapter(mf, caller));
+            mf.postProcess();
+            methods.set(i, mf);
+            classFlow.methodsByName.put(mf.name + "|" + mf.desc, mf);
+        }
+    }
+
+    private boolean hasInlinableCall(MethodFlow caller) {
+        for (Object o : caller.instructions) {
+            if (o instanceof MethodInsnNode
+                    && getInlinableCallee(caller, (MethodInsnNode) o) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private MethodFlow getInlinableCallee(MethodFlow caller,
+            MethodInsnNode min) {
+        return getInlinableCallee(caller, min.getOpcode(), min.owner, min.name, min.desc);
+    }
+
+    private MethodFlow getInlinableCallee(MethodFlow caller, int opcode, String owner,
+            String name, String desc) {
+        if (!owner.equals(classFlow.name)) {
+            return null;
+        }
+        MethodFlow callee = classFlow.methodsByName.get(name + "|" + desc);
+        if (callee == null || callee == caller) {
+            return null;
+        }
+        // Placeholders such as Task.yield() and Task.getCurrentTask() stand
+        // for code that the weaver or a hand-woven twin supplies.
+        if ((owner.equals(TASK_CLASS) && name.equals("getCurrentTask"))
+                || classFlow.methodsByName.containsKey(
+                        name + "|" + desc.replace(")", D_FIBER + ')'))) {
+            return null;
+        }
+        boolean isStatic = callee.isStatic();
+        boolean isPrivate = (callee.access & ACC_PRIVATE) != 0;
+        boolean isFinal = isPrivate || (callee.access & ACC_FINAL) != 0
+                || (classFlow.access & ACC_FINAL) != 0;
+        switch (opcode) {
+            case INVOKESTATIC:
+                if (!isStatic) return null;
+                break;
+            case INVOKESPECIAL:
+                if (isStatic || !isPrivate) return null;
+                break;
+            case INVOKEVIRTUAL:
+                if (isStatic || !isFinal) return null;
+                break;
+            default:
+                return null;
+        }
+        Boolean ok = inlinable.get(callee);
+        if (ok == null) {
+            ok = isInlinable(callee);
+            inlinable.put(callee, ok);
+        }
+        return ok ? callee : null;
+    }
+
+    private boolean isInlinable(MethodFlow callee) {
+        if (!callee.isPausable() || callee.isAbstract() || callee.isBridge()
+                || (callee.access & (ACC_NATIVE | ACC_SYNCHRONIZED)) != 0
+                || callee.instructions.size() == 0
+                || callee.tryCatchBlocks.size() > 0
+                || MethodWeaver.codeSize(callee) > MAX_CALLEE_SIZE) {
+            return false;
+        }
+        for (Object o : callee.instructions) {
+            int opcode = ((AbstractInsnNode) o).getOpcode();
+            if (opcode == JSR || opcode == RET) {
+                return false;
+            }
+        }
+        // Every return must leave just the return value on the stack
+        MethodNode mn = new MethodNode(callee.access, callee.name, callee.desc, null, null);
+        callee.accept(mn);
+        org.objectweb.asm.tree.analysis.Frame[] frames;
+        try {
+            frames = new Analyzer(new BasicInterpreter()).analyze(classFlow.name, mn);
+        } catch (AnalyzerException e) {
+            return false;
+        }
+        for (int i = 0; i < frames.length; i++) {
+            int opcode = ((AbstractInsnNode) mn.instructions.get(i)).getOpcode();
+            if (frames[i] != null && opcode >= IRETURN && opcode <= RETURN
+                    && frames[i].getStackSize() != (opcode == RETURN ? 0 : 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Two labels in a row would end up at the same position, which a
+     * MethodFlow can't represent; a NOP keeps them apart.
+     */
+    static void visitLabel(MethodFlow mf, Label l) {
+        if (mf.getLabelAt(mf.instructions.size()) != null) {
+            mf.visitInsn(NOP);
+        }
+        mf.visitLabel(l);
+    }
+
+    /**
+     * Copies the caller into a new MethodFlow, inlining calls on the way.
+     */
+    private class CallerAdapter extends MethodAdapter {
+        private final MethodFlow mf;
+        private final MethodFlow caller;
+        /** first local of the inlined bodies */
+        private final int base;
+        private int maxLocals;
+        private int maxStack;
+        private int growth;
+
+        CallerAdapter(MethodFlow mf, MethodFlow caller) {
+            super(mf);
+            this.mf = mf;
+            this.caller = caller;
+            base = caller.maxLocals;
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            PausableInliner.visitLabel(mf, label);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+            MethodFlow callee = getInlinableCallee(caller, opcode, owner, name, desc);
+            int size = callee == null ? 0 : MethodWeaver.codeSize(callee);
+            if (callee == null || growth + size > MAX_GROWTH) {
+                super.visitMethodInsn(opcode, owner, name, desc);
+                return;
+            }
+            growth += size;
+            maxLocals = Math.max(maxLocals, base + callee.maxLocals);
+            maxStack = Math.max(maxStack, callee.maxStack + 1);
+            inline(callee);
+        }
+
+        /**
+         * <pre>
+         *     xstore base+n ... xstore base+1  ;; the args, last first
+         *     [dup
+         *      invokevirtual Object.getClass   ;; the call's null check
+         *      pop
+         *      astore base]                    ;; the receiver
+         *     ... callee's code, with its locals moved up by base and
+         *     ... its returns replaced by goto END
+         *   END:
+         * </pre>
+         */
+        private void inline(MethodFlow callee) {
+            String[] args = TypeDesc.getArgumentTypes(callee.desc);
+            int[] argVars = new int[args.length];
+            int var = callee.isStatic() ? base : base + 1;
+            for (int i = 0; i < args.length; i++) {
+                argVars[i] = var;
+                var += TypeDesc.isDoubleWord(args[i]) ? 2 : 1;
+            }
+            for (int i = args.length - 1; i >= 0; i--) {
+                VMType.storeVar(mf, VMType.toVmType(args[i]), argVars[i]);
+            }
+            if (!callee.isStatic()) {
+                mf.visitInsn(DUP);
+                mf.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "getClass",
+                        "()Ljava/lang/Class;");
+                mf.visitInsn(POP);
+                VMType.storeVar(mf, VMType.TOBJECT, base);
+            }
+            Label endLabel = new Label();
+            BodyAdapter body = new BodyAdapter(mf, base, endLabel);
+            int last = callee.instructions.size() - 1;
+            for (int i = 0; i <= last; i++) {
+                Label l = callee.getLabelAt(i);
+                if (l != null) {
+                    body.visitLabel(l);
+                }
+                AbstractInsnNode ain = (AbstractInsnNode) callee.instructions.get(i);
+                int opcode = ain.getOpcode();
+                if (i == last && opcode >= IRETURN && opcode <= RETURN) {
+                    break; // falls through to END
+                }
+                ain.accept(body);
+            }
+            Label l = callee.getLabelAt(last + 1);
+            if (l != null) {
+                body.visitLabel(l);
+            }
+            visitLabel(endLabel);
+            for (Object o : callee.lineNumbers) {
+                LineNumberNode ln = (LineNumberNode) o;
+                mf.visitLineNumber(ln.line, body.map(ln.start));
+            }
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            super.visitMaxs(maxStack + this.maxStack, Math.max(maxLocals, this.maxLocals));
+        }
+    }
+
+    /**
+     * Writes a callee's instructions into the caller, with locals offset by
+     * the base of the inlined bodies, fresh labels, and returns turned
+     * into jumps.
+     */
+    private static class BodyAdapter extends MethodAdapter {
+        private final MethodFlow mf;
+        private final int base;
+        private final Label endLabel;
+        private final HashMap<Label, Label> labels = new HashMap<Label, Label>();
+
+        BodyAdapter(MethodFlow mf, int base, Label endLabel) {
+            super(mf);
+            this.mf = mf;
+            this.base = base;
+            this.endLabel = endLabel;
+        }
+
+        Label map(Label l) {
+            Label ret = labels.get(l);
+            if (ret == null) {
+                ret = new Label();
+                labels.put(l, ret);
+            }
+            return ret;
+        }
+
+        private Label[] map(Label[] ls) {
+            Label[] ret = new Label[ls.length];
+            for (int i = 0; i < ls.length; i++) {
+                ret[i] = map(ls[i]);
+            }
+            return ret;
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            PausableInliner.visitLabel(mf, map(label));
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode >= IRETURN && opcode <= RETURN) {
+                mf.visitJumpInsn(GOTO, endLabel);
+            } else {
+                mf.visitInsn(opcode);
+            }
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            mf.visitVarInsn(opcode, var + base);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            mf.visitIincInsn(var + base, increment);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            mf.visitJumpInsn(opcode, map(label));
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label[] labels) {
+            mf.visitTableSwitchInsn(min, max, map(dflt), map(labels));
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            mf.visitLookupSwitchInsn(map(dflt), keys, map(labels));
+        }
+    }
+}
@@ -0,0 +1,444 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.analysis;
+import static kilim.Constants.D_UNDEFINED;
+import static kilim.Constants.ALOAD_0;
+import static kilim.Constants.ASTORE_0;
+import static kilim.Constants.ILOAD_0;
+import static kilim.Constants.ISTORE_0;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.JSR;
+import static org.objectweb.asm.Opcodes.NEW;
+import static org.objectweb.asm.Opcodes.RET;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import kilim.KilimException;
+
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ByteVector;
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Adds StackMapTable frames to the methods of a woven class, for class
+ * versions 50 (Java 6) and up. They are checked by the type-checking
+ * verifier, which is much cheaper at class load than type inference (and
+ * the only verifier for versions 51 and up).
+ *
+ * Each method is recorded as the weaver writes it and run through
+ * MethodFlow's dataflow analysis once more, since the code that saves and
+ * restores frames has types of its own. A frame is written at the start of
+ * every basic block; locals that aren't live there are left as Top. The
+ * frames of the original code are dropped, their offsets don't hold any more.
+ *
+ * If a method's frames can't be worked out (a subroutine, code the
+ * analysis doesn't reach, or a merge of classes the resolver can't find),
+ * the method is written without them, a note is printed, and isIncomplete()
+ * is set. Such a class must be marked version 50, for which the JVM falls
+ * back to type inference. Any other failure is a bug, and is thrown.
+ */
+class StackMapAdapter extends ClassAdapter {
+    // verification types
+    static final Integer TOP                = 0;
+    static final Integer INTEGER            = 1;
+    static final Integer FLOAT              = 2;
+    static final Integer DOUBLE             = 3;
+    static final Integer LONG               = 4;
+    static final Integer NULL               = 5;
+    static final Integer UNINITIALIZED_THIS = 6;
+
+    private final ClassFlow classFlow;
+
+    private boolean         incomplete;
+
+    StackMapAdapter(ClassVisitor cv, ClassFlow classFlow) {
+        super(cv);
+        this.classFlow = classFlow;
+    }
+
+    /**
+     * @return true if some method was written without frames
+     */
+    boolean isIncomplete() {
+        return incomplete;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc,
+            String signature, String[] exceptions) {
+        return new MethodNode(access, name, desc, signature, exceptions) {
+            @Override
+            public void visitAttribute(Attribute attr) {
+                if (!attr.type.equals("StackMapTable") && !attr.type.equals("StackMap")) {
+                    super.visitAttribute(attr);
+                }
+            }
+
+            @Override
+            public void visitEnd() {
+                write(this);
+            }
+        };
+    }
+
+    private void write(MethodNode mn) {
+        MethodVisitor mv = cv.visitMethod(mn.access, mn.name, mn.desc, mn.signature,
+                ClassWeaver.toStringArray(mn.exceptions));
+        if (mn.instructions.size() > 0) {
+            MethodFlow flow = new MethodFlow(classFlow, mn.access, mn.name, mn.desc,
+                    mn.signature, ClassWeaver.toStringArray(mn.exceptions),
+                    classFlow.getContext());
+            String failure;
+            try {
+                if (hasSubroutine(mn)) {
+                    throw new NoFramesException("it has a subroutine");
+                }
+                mn.accept(new Normalizer(flow, mn));
+                flow.analyze();
+                flow.visitAttribute(computeFrames(flow));
+                flow.accept(mv);
+                return;
+            } catch (NoFramesException e) {
+                failure = e.getMessage();
+            } catch (UnknownClassException e) {
+                failure = e.getMessage();
+            }
+            System.err.println("Kilim: no stack map frames for "
+                    + classFlow.name.replace('/', '.') + "." + mn.name + mn.desc + ": "
+                    + failure);
+            incomplete = true;
+        }
+        mn.accept(mv);
+    }
+
+    private static boolean hasSubroutine(MethodNode mn) {
+        for (int i = 0; i < mn.instructions.size(); i++) {
+            int opcode = ((AbstractInsnNode) mn.instructions.get(i)).getOpcode();
+            if (opcode == JSR || opcode == RET) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private StackMapTable computeFrames(MethodFlow flow) {
+        // The first block needs a frame only if it is jumped to
+        HashSet<BasicBlock> targets = new HashSet<BasicBlock>();
+        for (BasicBlock bb : flow.getBasicBlocks()) {
+            targets.addAll(bb.successors);
+            for (Handler h : bb.handlers) {
+                targets.add(h.catchBB);
+            }
+        }
+        StackMapTable table = new StackMapTable(initialLocals(flow));
+        for (BasicBlock bb : flow.getBasicBlocks()) {
+            if (bb.startPos == 0 && !targets.contains(bb)) {
+                continue;
+            }
+            Frame f = bb.startFrame;
+            if (f == null) {
+                throw new NoFramesException("unreachable code at " + bb.startPos);
+            }
+            ArrayList<Object> locals = new ArrayList<Object>();
+            int len = 0;
+            for (int i = 0; i < f.locals.length; i++) {
+                Value v = f.locals[i];
+                if (!bb.usage.isLiveIn(i) || v.getTypeDesc() == D_UNDEFINED) {
+                    locals.add(TOP);
+                    continue;
+                }
+                locals.add(typeOf(flow, v));
+                len = locals.size();
+                if (v.isCategory2()) {
+                    i++; // one entry for both words
+                }
+            }
+            Object[] stack;
+            if (bb.isCatchHandler()) {
+                stack = new Object[] { typeOf(bb.caughtExceptionType) };
+            } else {
+                stack = new Object[f.stacklen];
+                for (int i = 0; i < f.stacklen; i++) {
+                    stack[i] = typeOf(flow, f.stack[i]);
+                }
+            }
+            table.add(bb.startLabel, locals.subList(0, len).toArray(), stack);
+        }
+        return table;
+    }
+
+    private Object[] initialLocals(MethodFlow flow) {
+        ArrayList<Object> locals = new ArrayList<Object>();
+        if ((flow.access & ACC_STATIC) == 0) {
+            locals.add(flow.name.equals("<init>") ? UNINITIALIZED_THIS : classFlow.name);
+        }
+        for (String desc : TypeDesc.getArgumentTypes(flow.desc)) {
+            locals.add(typeOf(desc));
+        }
+        return locals.toArray();
+    }
+
+    private Object typeOf(MethodFlow flow, Value v) {
+        String desc = v.getTypeDesc();
+        char c = desc.charAt(0);
+        if ((c == 'L' || c == '[') && v.getNumSites() == 1) {
+            // Not yet initialized if created by a NEW that has had no
+            // <init> call yet (see BasicBlock.interpret)
+            int site = v.getCreationSites()[0];
+            if (site == Frame.PARAM_SITE && flow.name.equals("<init>")
+                    && !classFlow.name.equals("java/lang/Object")) {
+                return UNINITIALIZED_THIS;
+            }
+            if (site < flow.instructions.size()
+                    && ((AbstractInsnNode) flow.instructions.get(site)).getOpcode() == NEW) {
+                return flow.getOrCreateLabelAtPos(site);
+            }
+        }
+        return typeOf(desc);
+    }
+
+    private static Object typeOf(String desc) {
+        switch (desc.charAt(0)) {
+            case 'Z': case 'B': case 'C': case 'S': case 'I':
+                return INTEGER;
+            case 'F':
+                return FLOAT;
+            case 'J':
+                return LONG;
+            case 'D':
+                return DOUBLE;
+            case 'N': // D_NULL
+                return NULL;
+            case 'L':
+                return desc.substring(1, desc.length() - 1);
+            case '[':
+                return desc;
+            default:
+                throw new NoFramesException("no verification type for " + desc);
+        }
+    }
+
+    /**
+     * Replays a method the way ClassReader would present it to MethodFlow:
+     * the weaver may place several labels at one spot, which are replaced by
+     * the first, and uses the short forms of loads and stores.
+     */
+    static class Normalizer extends MethodAdapter {
+        private final HashMap<Label, Label> aliases = new HashMap<Label, Label>();
+        private final HashSet<Label>        visited = new HashSet<Label>();
+
+        Normalizer(MethodVisitor mv, MethodNode mn) {
+            super(mv);
+            Label first = null;
+            for (Object o : mn.instructions) {
+                if (o instanceof LabelNode) {
+                    Label l = ((LabelNode) o).label;
+                    if (first == null) {
+                        first = l;
+                    } else if (l != first) {
+                        aliases.put(l, first);
+                    }
+                } else {
+                    first = null;
+                }
+            }
+        }
+
+        private Label map(Label l) {
+            Label ret = aliases.get(l);
+            return ret == null ? l : ret;
+        }
+
+        private Label[] map(Label[] labels) {
+            Label[] ret = new Label[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                ret[i] = map(labels[i]);
+            }
+            return ret;
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            // The weaver may visit a label twice in a row (once more as the
+            // start of a basic block)
+            if (!aliases.containsKey(label) && visited.add(label)) {
+                mv.visitLabel(label);
+            }
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode >= ILOAD_0 && opcode <= ALOAD_0 + 3) {
+                int n = opcode - ILOAD_0;
+                mv.visitVarInsn(ILOAD + n / 4, n % 4);
+            } else if (opcode >= ISTORE_0 && opcode <= ASTORE_0 + 3) {
+                int n = opcode - ISTORE_0;
+                mv.visitVarInsn(ISTORE + n / 4, n % 4);
+            } else {
+                mv.visitInsn(opcode);
+            }
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            mv.visitJumpInsn(opcode, map(label));
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label[] labels) {
+            mv.visitTableSwitchInsn(min, max, map(dflt), map(labels));
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            mv.visitLookupSwitchInsn(map(dflt), keys, map(labels));
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            mv.visitTryCatchBlock(map(start), map(end), map(handler), type);
+        }
+
+        @Override
+        public void visitLocalVariable(String name, String desc, String signature,
+                Label start, Label end, int index) {
+            mv.visitLocalVariable(name, desc, signature, map(start), map(end), index);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            mv.visitLineNumber(line, map(start));
+        }
+    }
+
+    /**
+     * The frames, by label. Written when the class is, as offsets are known
+     * only then. Verification types are the constants above, class names,
+     * or the label of the NEW instruction of an uninitialized object.
+     */
+    static class StackMapTable extends Attribute {
+        private final Object[]           initialLocals;
+        private final ArrayList<Label>    labels = new ArrayList<Label>();
+        private final ArrayList<Object[]> locals = new ArrayList<Object[]>();
+        private final ArrayList<Object[]> stacks = new ArrayList<Object[]>();
+
+        StackMapTable(Object[] initialLocals) {
+            super("StackMapTable");
+            this.initialLocals = initialLocals;
+        }
+
+        void add(Label label, Object[] frameLocals, Object[] stack) {
+            labels.add(label);
+            locals.add(frameLocals);
+            stacks.add(stack);
+        }
+
+        @Override
+        public boolean isUnknown() {
+            return false;
+        }
+
+        @Override
+        public boolean isCodeAttribute() {
+            return true;
+        }
+
+        @Override
+        protected Label[] getLabels() {
+            ArrayList<Label> ret = new ArrayList<Label>(labels);
+            for (Object[] types : locals) {
+                addLabels(ret, types);
+            }
+            for (Object[] types : stacks) {
+                addLabels(ret, types);
+            }
+            return ret.toArray(new Label[ret.size()]);
+        }
+
+        private static void addLabels(ArrayList<Label> ret, Object[] types) {
+            for (Object t : types) {
+                if (t instanceof Label) ret.add((Label) t);
+            }
+        }
+
+        @Override
+        protected ByteVector write(ClassWriter cw, byte[] code, int len,
+                int maxStack, int maxLocals) {
+            ByteVector bv = new ByteVector();
+            bv.putShort(labels.size());
+            Object[] prevLocals = initialLocals;
+            int prevOffset = -1;
+            for (int i = 0; i < labels.size(); i++) {
+                int offset = labels.get(i).getOffset();
+                int delta = offset - prevOffset - 1;
+                Object[] frameLocals = locals.get(i);
+                Object[] stack = stacks.get(i);
+                boolean sameLocals = Arrays.equals(frameLocals, prevLocals);
+                if (sameLocals && stack.length == 0) {
+                    if (delta < 64) {
+                        bv.putByte(delta); // same_frame
+                    } else {
+                        bv.putByte(251).putShort(delta); // same_frame_extended
+                    }
+                } else if (sameLocals && stack.length == 1) {
+                    if (delta < 64) {
+                        bv.putByte(64 + delta); // same_locals_1_stack_item_frame
+                    } else {
+                        bv.putByte(247).putShort(delta);
+                    }
+                    putType(cw, bv, stack[0]);
+                } else {
+                    bv.putByte(255).putShort(delta); // full_frame
+                    putTypes(cw, bv, frameLocals);
+                    putTypes(cw, bv, stack);
+                }
+                prevLocals = frameLocals;
+                prevOffset = offset;
+            }
+            return bv;
+        }
+
+        private static void putTypes(ClassWriter cw, ByteVector bv, Object[] types) {
+            bv.putShort(types.length);
+            for (Object t : types) {
+                putType(cw, bv, t);
+            }
+        }
+
+        private static void putType(ClassWriter cw, ByteVector bv, Object t) {
+            if (t instanceof Integer) {
+                bv.putByte((Integer) t);
+            } else if (t instanceof String) {
+                bv.putByte(7).putShort(cw.newClass((String) t)); // Object
+            } else {
+                bv.putByte(8).putShort(((Label) t).getOffset()); // Uninitialized
+            }
+        }
+    }
+
+    /** Why a method's frames can't be computed; the method goes without */
+    static class NoFramesException extends KilimException {
+        private static final long serialVersionUID = 4117952369108315830L;
+
+        NoFramesException(String msg) {
+            super(msg);
+        }
+    }
+}
@@ -23,7 +23,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 import kilim.Constants;
-import kilim.osgi.InstrumentationHook;
+import kilim.osgi.InstrumentationContext;
 
 import org.objectweb.asm.Type;
 
@@ -207,46 +207,53 @@ public class TypeDesc {
     }
     
     private static String toClassName(String s) {
-        return s.replace('/','.').substring(1,s.length()-1);
+        return s.substring(1,s.length()-1);
     }
-    static String JAVA_LANG_OBJECT = "java.lang.Object"; 
+    static String JAVA_LANG_OBJECT = "java/lang/Object"; 
     
     // public for testing purposes
     public static String commonSuperType(String oa, String ob) {
-        try {
-            if (oa == D_OBJECT || ob == D_OBJECT) return D_OBJECT;
-            if (oa.equals(ob)) return oa;
-            
-            String a = toClassName(oa);
-            String b = toClassName(ob);
-            Class ca = InstrumentationHook.loadClass(a);
-            Class cb = InstrumentationHook.loadClass(b);
-            if (ca.isInterface() || cb.isInterface()) {
-                return D_OBJECT; // This is what the java bytecode verifier does
+        if (oa == D_OBJECT || ob == D_OBJECT) return D_OBJECT;
+        if (oa.equals(ob)) return oa;
+
+        ClassSummary ca = getClassSummary(toClassName(oa));
+        ClassSummary cb = getClassSummary(toClassName(ob));
+        if (ca.isInterface || cb.isInterface) {
+            return D_OBJECT; // This is what the java bytecode verifier does
+        }
+        ArrayList<String> sca = getSuperClasses(ca);
+        ArrayList<String> scb = getSuperClasses(cb);
+        int lasta = sca.size()-1;
+        int lastb = scb.size()-1;
+        do {
+            if (sca.get(lasta).equals(scb.get(lastb))) {
+                lasta--;
+                lastb--;
+            } else {
+                break;
             }
-            ArrayList<String> sca = getSuperClasses(ca);
-            ArrayList<String> scb = getSuperClasses(cb);
-            int lasta = sca.size()-1;
-            int lastb = scb.size()-1;
-            do {
-                if (sca.get(lasta).equals(scb.get(lastb))) {
-                    lasta--;
-                    lastb--;
-                } else {
-                    break;
-                }
-            } while (lasta >= 0 && lastb >= 0);
-            return toDesc(sca.get(lasta+1));
-        } catch (ClassNotFoundException cnfe) {
-            throw new InternalError(cnfe.getMessage());
+        } while (lasta >= 0 && lastb >= 0);
+        return toDesc(sca.get(lasta+1));
+    }
+
+    private static ClassSummary getClassSummary(String name) {
+        ClassSummary cs = InstrumentationContext.current().getClassSummary(name);
+        if (cs == null) {
+            throw new UnknownClassException(name);
         }
+        return cs;
     }
-    
-    private static ArrayList<String> getSuperClasses(Class c) {
+
+    private static ArrayList<String> getSuperClasses(ClassSummary c) {
         ArrayList<String> ret = new ArrayList<String>(3);
-        while (c != null) {
-            ret.add(c.getName());
-            c = c.getSuperclass();
+        while (true) {
+            ret.add(c.name);
+            if (c.superName == null) break;
+            ClassSummary sup = c.resolver.getClassSummary(c.superName);
+            if (sup == null) {
+                throw new UnknownClassException(c.superName);
+            }
+            c = sup;
         }
         return ret;
         
@@ -254,7 +261,7 @@ public class TypeDesc {
     
     private static String toDesc(String name) {
         return (name.equals(JAVA_LANG_OBJECT)) ?
-                D_OBJECT : "L" + name.replace('.', '/') + ';';
+                D_OBJECT : "L" + name + ';';
     }
 
     public static boolean isIntType(String typeDesc) {
@@ -0,0 +1,21 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.analysis;
+
+import kilim.KilimException;
+
+/**
+ * Thrown when the type analysis needs the supertypes of a class that the
+ * class resolver can't find.
+ */
+public class UnknownClassException extends KilimException {
+    private static final long serialVersionUID = -3954214587231546209L;
+
+    public UnknownClassException(String className) {
+        super("Can't find class " + className);
+    }
+}
@@ -75,13 +75,15 @@ public class Usage {
     /**
      * This is the standard liveness calculation (Dragon Book, section 10.6). At
      * each BB (and its corresponding usage), we evaluate "in" using use and
-     * def. in = use U (out \ def) where out = U succ.in, for all successors
+     * def. in = use U (out \ def) where out = U succ.in, for all successors.
+     * A catch handler may be entered before any var is written, so the vars
+     * live in handlers are live in this BB, defined here or not.
      */
-    public boolean evalLiveIn(ArrayList<Usage> succUsage) {
+    public boolean evalLiveIn(ArrayList<Usage> succUsage, ArrayList<Usage> handlerUsage) {
         BitSet out = new BitSet(nLocals);
         BitSet old_in = (BitSet)in.clone();
         if (succUsage.size() == 0) {
-            in = use;
+            in = (BitSet) use.clone();
         } else {
             // calculate   out = U succ.in
             out = (BitSet) succUsage.get(0).in.clone();
@@ -95,6 +97,9 @@ public class Usage {
             out.or(use);
             in = out;
         }
+        for (Usage h : handlerUsage) {
+            in.or(h.in);
+        }
         return !(in.equals(old_in));
     }
 
@@ -0,0 +1,188 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.analysis;
+
+/**
+ * Opt-in variations on the generated code. A bundle selects them with the
+ * Kilim-Options manifest header, a comma separated list such as
+ * <pre>
+ *    Kilim-Options: reuse-states
+ * </pre>
+ * Bundles without the header get the options named by the
+ * kilim.weavingOptions system property, if any. Unknown options are an
+ * error rather than silently ignored.
+ *
+ * <dl>
+ * <dt>reuse-states</dt>
+ * <dd>A frame that resumes keeps its State object around (see
+ * Fiber.keepState()) and refills it on its next pause at the same depth,
+ * instead of allocating a new one for every pause. This trades a little
+ * retained memory per fiber (and stale references held by the spare
+ * states) for much less garbage from tasks that pause often.</dd>
+ * <dt>exact-states</dt>
+ * <dd>State classes get fields of the saved values' own types (named
+ * kilim.states.T_&lt;hash of the field types&gt;) instead of one field per VM
+ * type (S_O2I etc.), so restoring a frame needs no casts. Only types that
+ * every bundle sees identically qualify: primitives, java.* and kilim's
+ * own classes. Other references are still stored as Object. Costs more
+ * state classes than the shared scheme.</dd>
+ * <dt>fast-calls</dt>
+ * <dd>A pausable call that neither pauses nor resumes a frame does its
+ * Fiber bookkeeping inline (a couple of field updates and a check of
+ * Fiber.isPausing) instead of calling Fiber.down() and up() and switching
+ * on the result. Rewinding and the pausing and restoring returns still go
+ * through down() and up(). Adds about 30 bytes per call site.</dd>
+ * <dt>inline-calls</dt>
+ * <dd>Calls from a pausable method to a small pausable method of the same
+ * class that can't be overridden (static, private or final, at most 35
+ * bytes of code) are replaced by the callee's code, so the callee costs no
+ * frame of its own when the caller pauses. A caller grows by at most 400
+ * bytes. Inlined methods don't show up in stack traces.</dd>
+ * <dt>yield-loops[=&lt;iterations&gt;]</dt>
+ * <dd>Every loop in a pausable method counts its iterations against the
+ * running task's budget (see Task.loopBudgetSpent()), and calls
+ * Task.yield() when the task has run that many iterations (10000 by
+ * default) since it was last resumed. Keeps a CPU-bound task from holding
+ * on to its thread, for a counter update and a test per iteration.</dd>
+ * </dl>
+ */
+public final class WeavingOptions {
+    public static final String   MANIFEST_HEADER = "Kilim-Options";
+    public static final String   SYSTEM_PROPERTY = "kilim.weavingOptions";
+
+    public static final WeavingOptions NONE = new WeavingOptions(false, false, false, false, 0);
+
+    private static WeavingOptions defaultOptions;
+
+    private final boolean        reuseStates;
+    private final boolean        exactStates;
+    private final boolean        fastCalls;
+    private final boolean        inlineCalls;
+    /** yield-loops: loop iterations between yields, 0 if not selected */
+    private final int            loopBudget;
+
+    /** loopBudget for a plain "yield-loops" */
+    public static final int      DEFAULT_LOOP_BUDGET = 10000;
+
+    private WeavingOptions(boolean reuseStates, boolean exactStates, boolean fastCalls,
+            boolean inlineCalls, int loopBudget) {
+        this.reuseStates = reuseStates;
+        this.exactStates = exactStates;
+        this.fastCalls = fastCalls;
+        this.inlineCalls = inlineCalls;
+        this.loopBudget = loopBudget;
+    }
+
+    /**
+     * @param spec comma separated list of options; null or empty for none.
+     * @throws IllegalArgumentException if an option is not known
+     */
+    public static WeavingOptions parse(String spec) {
+        if (spec == null || spec.trim().length() == 0) {
+            return NONE;
+        }
+        boolean reuseStates = false;
+        boolean exactStates = false;
+        boolean fastCalls = false;
+        boolean inlineCalls = false;
+        int loopBudget = 0;
+        for (String opt : spec.split(",")) {
+            opt = opt.trim();
+            if (opt.length() == 0)
+                continue;
+            if (opt.equals("reuse-states")) {
+                reuseStates = true;
+            } else if (opt.equals("exact-states")) {
+                exactStates = true;
+            } else if (opt.equals("fast-calls")) {
+                fastCalls = true;
+            } else if (opt.equals("inline-calls")) {
+                inlineCalls = true;
+            } else if (opt.equals("yield-loops")) {
+                loopBudget = DEFAULT_LOOP_BUDGET;
+            } else if (opt.startsWith("yield-loops=")) {
+                loopBudget = parseLoopBudget(opt.substring("yield-loops=".length()));
+            } else {
+                throw new IllegalArgumentException("Unknown weaving option: " + opt);
+            }
+        }
+        return new WeavingOptions(reuseStates, exactStates, fastCalls, inlineCalls,
+                loopBudget);
+    }
+
+    private static int parseLoopBudget(String s) {
+        int budget;
+        try {
+            budget = Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            budget = 0;
+        }
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Bad yield-loops budget: " + s);
+        }
+        return budget;
+    }
+
+    /**
+     * @return the options given by the kilim.weavingOptions system property
+     */
+    public static synchronized WeavingOptions getDefault() {
+        if (defaultOptions == null) {
+            defaultOptions = parse(System.getProperty(SYSTEM_PROPERTY));
+        }
+        return defaultOptions;
+    }
+
+    public boolean reuseStates() {
+        return reuseStates;
+    }
+
+    public boolean exactStates() {
+        return exactStates;
+    }
+
+    public boolean fastCalls() {
+        return fastCalls;
+    }
+
+    public boolean inlineCalls() {
+        return inlineCalls;
+    }
+
+    /**
+     * @return the number of loop iterations a task may run between yields
+     * with the yield-loops option, or 0 if it isn't selected
+     */
+    public int loopBudget() {
+        return loopBudget;
+    }
+
+    /**
+     * @return the options in canonical form, as accepted by parse()
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (reuseStates) sb.append("reuse-states,");
+        if (exactStates) sb.append("exact-states,");
+        if (fastCalls) sb.append("fast-calls,");
+        if (inlineCalls) sb.append("inline-calls,");
+        if (loopBudget > 0) sb.append("yield-loops=").append(loopBudget).append(',');
+        if (sb.length() > 0) sb.setLength(sb.length() - 1);
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof WeavingOptions && o.toString().equals(toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -0,0 +1,59 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.analysis;
+
+/**
+ * How much weaving keeps in memory, for tests and diagnostics. The
+ * weaver's own numbers are read directly; those of whatever loads the
+ * woven classes (the framework hook) through the Source it sets.
+ */
+public class WeavingStats {
+    public interface Source {
+        /**
+         * @return the number of state classes whose bytes wait to be
+         *         defined
+         */
+        int getPendingStateClassCount();
+
+        /**
+         * @return the number of class resolvers not yet garbage collected
+         */
+        int getLiveResolverCount();
+    }
+
+    private static volatile Source source;
+
+    private WeavingStats() {
+    }
+
+    public static void setSource(Source s) {
+        source = s;
+    }
+
+    /**
+     * @return the number of state classes whose bytes the weaver keeps
+     */
+    public static int getStateClassCount() {
+        return ClassWeaver.stateClasses.size();
+    }
+
+    /**
+     * @return see Source, or -1 if no source is set
+     */
+    public static int getPendingStateClassCount() {
+        Source s = source;
+        return s == null ? -1 : s.getPendingStateClassCount();
+    }
+
+    /**
+     * @return see Source, or -1 if no source is set
+     */
+    public static int getLiveResolverCount() {
+        Source s = source;
+        return s == null ? -1 : s.getLiveResolverCount();
+    }
+}
@@ -0,0 +1,174 @@
+package kilim.osgi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import kilim.analysis.ClassResolver;
+import kilim.analysis.ClassSummary;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Reads class summaries through a bundle's resources, i.e. from the classes
+ * the bundle's class loader would find, without loading them. Summaries are
+ * cached per bundle; those of java.* classes, which every bundle gets from
+ * the boot class path, are taken from the (boot) classes themselves and
+ * shared through a resolver of their own, which belongs to no bundle.
+ *
+ * A class found in another bundle (through an import) is summarized by that
+ * bundle's resolver, so that its supertypes are looked up the way that
+ * bundle sees them.
+ */
+public class BundleClassResolver implements ClassResolver {
+
+	private static final ConcurrentHashMap<Long, BundleClassResolver> resolvers = new ConcurrentHashMap<Long, BundleClassResolver>();
+
+	/**
+	 * The bundles' resolvers that are still reachable, including those
+	 * clear() has dropped from resolvers. See getLiveCount().
+	 */
+	private static final Map<BundleClassResolver, Boolean> live = Collections
+			.synchronizedMap(new WeakHashMap<BundleClassResolver, Boolean>());
+
+	/** Marks classes that could not be found */
+	private static final Object MISSING = new Object();
+
+	/**
+	 * Summarizes the java.* classes for all bundles. It must not be one of
+	 * the bundles' resolvers: the summaries refer to their resolver, and
+	 * would keep that bundle's resolver (and its summaries) alive.
+	 */
+	private static final BundleClassResolver javaClasses = new BundleClassResolver(null);
+
+	private static volatile BundleContext frameworkContext;
+
+	/** null for javaClasses */
+	private final Bundle bundle;
+
+	/** ClassSummary or MISSING by class name */
+	private final ConcurrentHashMap<String, Object> summaries = new ConcurrentHashMap<String, Object>();
+
+	private final ConcurrentHashMap<String, Integer> statuses = new ConcurrentHashMap<String, Integer>();
+
+	private BundleClassResolver(Bundle bundle) {
+		this.bundle = bundle;
+	}
+
+	/**
+	 * Lets resolvers find the bundles that provide imported classes.
+	 */
+	static void setFrameworkContext(BundleContext context) {
+		frameworkContext = context;
+	}
+
+	/**
+	 * Forgets everything read from bundles, e.g. because one of them was
+	 * updated or refreshed. Summaries of other bundles may refer to it.
+	 */
+	static void clear() {
+		resolvers.clear();
+	}
+
+	public static BundleClassResolver forBundle(Bundle bundle) {
+		Long id = bundle.getBundleId();
+		BundleClassResolver resolver = resolvers.get(id);
+		if (resolver == null) {
+			resolver = new BundleClassResolver(bundle);
+			BundleClassResolver prev = resolvers.putIfAbsent(id, resolver);
+			if (prev != null)
+				resolver = prev;
+			else
+				live.put(resolver, Boolean.TRUE);
+		}
+		return resolver;
+	}
+
+	/**
+	 * @return how many resolvers of bundles have not been garbage collected
+	 *         yet; one that outlives its bundle keeps the bundle's classes
+	 */
+	static int getLiveCount() {
+		return live.size();
+	}
+
+	public ClassSummary getClassSummary(String name) {
+		if (this != javaClasses && name.startsWith("java/"))
+			return javaClasses.getClassSummary(name);
+		Object summary = summaries.get(name);
+		if (summary == null) {
+			summary = read(name);
+			if (summary == null)
+				summary = MISSING;
+			Object prev = summaries.putIfAbsent(name, summary);
+			if (prev != null)
+				summary = prev;
+		}
+		return summary == MISSING ? null : (ClassSummary) summary;
+	}
+
+	public void addClassSummary(ClassSummary summary) {
+		summaries.putIfAbsent(summary.name, summary);
+	}
+
+	public ConcurrentHashMap<String, Integer> getPausableStatusCache() {
+		return statuses;
+	}
+
+	private ClassSummary read(String name) {
+		if (name.startsWith("java/")) {
+			// from the boot class path, and maybe too new for our ASM
+			try {
+				return ClassSummary.fromClass(Class.forName(name.replace('/',
+						'.'), false, null), this);
+			} catch (ClassNotFoundException e) {
+				return null;
+			}
+		}
+		if (bundle == null)
+			return null;
+		URL url = bundle.getResource(name + ".class");
+		if (url == null)
+			return null;
+		try {
+			InputStream in = url.openStream();
+			try {
+				return ClassSummary.read(in, providerOf(url));
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Equinox resource URLs look like bundleresource://&lt;bundle id&gt;[.fwk...]/path.
+	 * Anything else comes from outside the framework (the boot class path).
+	 */
+	private BundleClassResolver providerOf(URL url) {
+		BundleContext context = frameworkContext;
+		if (context == null || !url.getProtocol().startsWith("bundle"))
+			return this;
+		String host = url.getHost();
+		int dot = host.indexOf('.');
+		if (dot >= 0)
+			host = host.substring(0, dot);
+		try {
+			long id = Long.parseLong(host);
+			if (id == bundle.getBundleId())
+				return this;
+			Bundle provider = context.getBundle(id);
+			if (provider != null)
+				return forBundle(provider);
+		} catch (NumberFormatException ignore) {
+		}
+		return this;
+	}
+}
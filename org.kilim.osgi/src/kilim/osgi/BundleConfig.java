@@ -0,0 +1,104 @@
+package kilim.osgi;
+
+import java.util.Dictionary;
+
+import kilim.analysis.WeavingOptions;
+
+import org.eclipse.osgi.baseadaptor.BaseData;
+import org.osgi.framework.BundleException;
+
+/**
+ * What the manifest of a bundle says about weaving its classes. Read once
+ * per bundle rather than for every class it loads.
+ *
+ * Kilim-Include and Kilim-Exclude are comma separated lists of packages
+ * narrowing down the classes to weave. An entry "com.foo" stands for the
+ * classes of that package, "com.foo.*" for those of the package and its
+ * subpackages. With no Kilim-Include, all packages are included.
+ */
+public class BundleConfig {
+
+	public static final String ENABLED_HEADER = "Kilim-Enabled";
+	public static final String INCLUDE_HEADER = "Kilim-Include";
+	public static final String EXCLUDE_HEADER = "Kilim-Exclude";
+
+	/** For bundles whose classes are not woven */
+	static final BundleConfig DISABLED = new BundleConfig(null, null, null);
+
+	/** null if the bundle is not woven */
+	public final WeavingOptions options;
+
+	private final String[] includes;
+	private final String[] excludes;
+
+	/** Set by InstrumentationHook once the framework has started */
+	WovenClassCache cache;
+	boolean cacheOpened;
+
+	private BundleConfig(WeavingOptions options, String[] includes,
+			String[] excludes) {
+		this.options = options;
+		this.includes = includes;
+		this.excludes = excludes;
+	}
+
+	public static BundleConfig read(BaseData data) {
+		Dictionary<?, ?> manifest;
+		try {
+			manifest = data.getManifest();
+		} catch (BundleException e) {
+			throw new AssertionError(e);
+		}
+		Object value = manifest.get(ENABLED_HEADER);
+		if (!(value instanceof String && Boolean.parseBoolean((String) value)))
+			return DISABLED;
+		Object options = manifest.get(WeavingOptions.MANIFEST_HEADER);
+		WeavingOptions weavingOptions;
+		try {
+			weavingOptions = options instanceof String ? WeavingOptions
+					.parse((String) options) : WeavingOptions.getDefault();
+		} catch (IllegalArgumentException e) {
+			System.err.println("Kilim: not weaving " + data.getSymbolicName()
+					+ ": " + e.getMessage());
+			return DISABLED;
+		}
+		return new BundleConfig(weavingOptions, split(manifest
+				.get(INCLUDE_HEADER)), split(manifest.get(EXCLUDE_HEADER)));
+	}
+
+	public boolean isEnabled() {
+		return options != null;
+	}
+
+	/**
+	 * @param className dotted name
+	 */
+	public boolean includes(String className) {
+		int dot = className.lastIndexOf('.');
+		String pkg = dot < 0 ? "" : className.substring(0, dot);
+		if (includes != null && !matches(includes, pkg))
+			return false;
+		return excludes == null || !matches(excludes, pkg);
+	}
+
+	private static boolean matches(String[] patterns, String pkg) {
+		for (String p : patterns) {
+			if (p.endsWith(".*")) {
+				String prefix = p.substring(0, p.length() - 2);
+				if (pkg.equals(prefix) || pkg.startsWith(prefix + "."))
+					return true;
+			} else if (pkg.equals(p))
+				return true;
+		}
+		return false;
+	}
+
+	private static String[] split(Object header) {
+		if (!(header instanceof String))
+			return null;
+		String[] items = ((String) header).split(",");
+		for (int i = 0; i < items.length; i++)
+			items[i] = items[i].trim();
+		return items;
+	}
+}
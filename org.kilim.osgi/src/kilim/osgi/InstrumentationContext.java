@@ -3,37 +3,70 @@
  */
 package kilim.osgi;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import kilim.analysis.ClassFlow;
-import kilim.analysis.ClassWeaver;
+import kilim.analysis.ClassResolver;
+import kilim.analysis.ClassSummary;
 
 import org.osgi.framework.Bundle;
 
-public class InstrumentationContext {
+public class InstrumentationContext implements ClassResolver {
+
+	/**
+	 * The class being woven by the current thread, and through its parents,
+	 * the classes whose weaving caused it to be loaded. Equinox may load (and
+	 * so weave) classes of different bundles in parallel.
+	 */
+	private static final ThreadLocal<InstrumentationContext> current = new ThreadLocal<InstrumentationContext>();
 
 	public final InstrumentationContext parent;
-	private final Bundle bundle;
+	private final ClassResolver resolver;
 	private final String klassName;
 	private ClassFlow classFlow;
 	private final String klassNameWithSlashes;
 	
-	private static final Map<String, ClassFlow> instrumentedFlows =
-		Collections.synchronizedMap(new HashMap<String, ClassFlow>());
-
 	public InstrumentationContext(InstrumentationContext parent,
 			Bundle bundle, String klassName) {
-		if (bundle == null)
-			throw new NullPointerException("bundle is null");
+		this(parent, BundleClassResolver.forBundle(checkNotNull(bundle)),
+				klassName);
+	}
+
+	/**
+	 * @param resolver sees the classes the way the woven class does
+	 */
+	public InstrumentationContext(InstrumentationContext parent,
+			ClassResolver resolver, String klassName) {
+		if (resolver == null)
+			throw new NullPointerException("resolver is null");
 		if (klassName == null)
 			throw new NullPointerException("klassName is null");
 		this.parent = parent;
-		this.bundle = bundle;
+		this.resolver = resolver;
 		this.klassName = klassName;
 		this.klassNameWithSlashes = klassName.replace('.', '/');
 	}
+
+	private static Bundle checkNotNull(Bundle bundle) {
+		if (bundle == null)
+			throw new NullPointerException("bundle is null");
+		return bundle;
+	}
+
+	/**
+	 * @return the context of the class the current thread is weaving, or null
+	 */
+	public static InstrumentationContext current() {
+		return current.get();
+	}
+
+	/**
+	 * Whoever drives the weaver sets the context of the class it is about to
+	 * weave, and restores the previous one afterwards.
+	 */
+	public static void setCurrent(InstrumentationContext context) {
+		current.set(context);
+	}
 	
 	boolean isBeingInstrumented(String name) {
 		if (this.klassName.equals(name))
@@ -44,30 +77,32 @@ public class InstrumentationContext {
 			return false;
 	}
 
-	public Class<?> loadClass(String name) throws ClassNotFoundException {
-		if (isBeingInstrumented(name))
-			throw new ClassNotFoundException("It's being instrumented, dude!");
-//		System.out.println("Loading " + name + " from " + bundle.getSymbolicName());
-//		if (name.equals("com.esko.dtl.core.runtime.DtlMethod"))
-//			System.out.println("InstrumentationContext.loadClass(): breakpoint");
-		Class<?> klass = bundle.loadClass(name);
-//		try {
-//			klass.getDeclaredMethods();
-//		} catch (LinkageError e) {
-//			System.out.println("InstrumentationContext.loadClass(" + name + "): LinkageError " + e.getMessage());
-//			System.out.println();
-//		}
-		return klass;
+	/**
+	 * @param name with slashes
+	 * @return the summary of the class as seen by the woven class, read from
+	 * its bytes rather than loaded.
+	 */
+	public ClassSummary getClassSummary(String name) {
+		return resolver.getClassSummary(name);
+	}
+
+	public ConcurrentHashMap<String, Integer> getPausableStatusCache() {
+		return resolver.getPausableStatusCache();
+	}
+
+	public void addClassSummary(ClassSummary summary) {
+		resolver.addClassSummary(summary);
 	}
 
+	/**
+	 * @return the flow of a class being analyzed by this thread (this
+	 * context or its parents). Other classes are known by their summaries.
+	 */
 	public ClassFlow findClassFlow(String name) {
-		return instrumentedFlows.get(name);
-//		if (this.klassNameWithSlashes.equals(name))
-//			return getClassFlow();
-//		if (parent != null)
-//			return parent.findClassFlow(name);
-//		else
-//			return null;
+		for (InstrumentationContext c = this; c != null; c = c.parent)
+			if (c.klassNameWithSlashes.equals(name) && c.classFlow != null)
+				return c.classFlow;
+		return null;
 	}
 	
 	public int depth() {
@@ -76,11 +111,19 @@ public class InstrumentationContext {
 
 	public void setClassFlow(ClassFlow classFlow) {
 		this.classFlow = classFlow;
-		instrumentedFlows.put(klassNameWithSlashes, classFlow);
+	}
+
+	/**
+	 * Hands a summary of the analyzed class to the resolver, which would
+	 * otherwise read the class file again when other classes ask about it.
+	 * The flow itself goes away with this context.
+	 */
+	public void classFlowAnalyzed() {
+		resolver.addClassSummary(ClassSummary.fromFlow(classFlow, resolver));
 	}
 
 	public ClassFlow getClassFlow() {
 		return classFlow;
 	}
 
-}
\ No newline at end of file
+}
@@ -3,19 +3,29 @@ package kilim.osgi;
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import kilim.analysis.ClassInfo;
+import kilim.analysis.ClassScanner;
 import kilim.analysis.ClassWeaver;
 import kilim.analysis.Detector;
+import kilim.analysis.WeavingOptions;
+import kilim.analysis.WeavingStats;
 import kilim.tools.DumpClass;
 
 import org.eclipse.osgi.baseadaptor.BaseAdaptor;
@@ -37,61 +47,171 @@ import org.eclipse.osgi.internal.loader.BundleLoader;
 import org.eclipse.osgi.util.ManifestElement;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
 import org.osgi.service.packageadmin.PackageAdmin;
 
 public class InstrumentationHook implements AdaptorHook, ClassLoadingHook,
 		ClassLoaderDelegateHook {
 
-	private static final String MANIFEST_KEY = "Kilim-Enabled";
+	/** State classes produced by the weaver, to be defined by the fibers bundle */
+	private final Map<String, byte[]> additionalClasses = new ConcurrentHashMap<String, byte[]>();
 
-	private Map<String, byte[]> additionalClasses = new HashMap<String, byte[]>();
+	/**
+	 * Names of the state classes used by the woven classes of each bundle
+	 * (by id), so that their bytes can be dropped once no bundle needs them.
+	 * Locked while additionalClasses is updated on behalf of a bundle.
+	 */
+	private final Map<Long, Set<String>> stateClassesByBundle = new HashMap<Long, Set<String>>();
 
-	private static InstrumentationContext instrumentationContext;
+	/**
+	 * State classes the fibers bundle has defined already, whose bytes are
+	 * not to be put back into additionalClasses. Guarded by
+	 * stateClassesByBundle, and emptied when the fibers bundle gets a new
+	 * class loader.
+	 */
+	private final Set<String> definedStateClasses = new HashSet<String>();
 
 	private BundleContext context;
 
 	private PackageAdmin packageAdmin;
 
-	private DefaultClassLoader fibersPluginClassLoader;
+	private volatile DefaultClassLoader fibersPluginClassLoader;
+
+	/**
+	 * Fingerprint of the installed bundles, see WovenClassCache. Recomputed
+	 * whenever a bundle is updated, unresolved or uninstalled.
+	 */
+	private volatile String installedBundlesStamp;
+
+	private final Map<BaseData, BundleConfig> configs = new WeakHashMap<BaseData, BundleConfig>();
+
+	/** Set to true to print weaving statistics when the framework stops */
+	public static final String STATS_PROPERTY = "kilim.stats";
+
+	/**
+	 * Drops what was learned about classes of bundles that are gone or
+	 * about to be rewired, and the open caches, whose stamp no longer holds.
+	 */
+	private final SynchronousBundleListener bundleListener = new SynchronousBundleListener() {
+		public void bundleChanged(BundleEvent event) {
+			switch (event.getType()) {
+			case BundleEvent.UPDATED:
+			case BundleEvent.UNRESOLVED:
+			case BundleEvent.UNINSTALLED:
+				BundleClassResolver.clear();
+				purgeStateClasses(event.getBundle().getBundleId());
+				updateInstalledBundlesStamp();
+				break;
+			}
+		}
+	};
 
-	public static Class<?> loadClass(String name) throws ClassNotFoundException {
-		return instrumentationContext.loadClass(name);
-	}
+	private final WeavingStats.Source stats = new WeavingStats.Source() {
+		public int getPendingStateClassCount() {
+			return additionalClasses.size();
+		}
+
+		public int getLiveResolverCount() {
+			return BundleClassResolver.getLiveCount();
+		}
+	};
 
 	public void frameworkStart(BundleContext context) throws BundleException {
 		this.context = context;
+		BundleClassResolver.setFrameworkContext(context);
+		context.addBundleListener(bundleListener);
 		ServiceReference ref = context.getServiceReference(PackageAdmin.class
 				.getName());
 		packageAdmin = (PackageAdmin) context.getService(ref);
+		updateInstalledBundlesStamp();
+		WeavingStats.setSource(stats);
+	}
+
+	/**
+	 * Digests the id, version and modification time of every installed
+	 * bundle into installedBundlesStamp, and closes the caches opened
+	 * under the previous stamp; they are reopened on the next class load.
+	 */
+	private void updateInstalledBundlesStamp() {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		for (Bundle bundle : context.getBundles()) {
+			String entry = bundle.getBundleId() + ":"
+					+ bundle.getHeaders().get(Constants.BUNDLE_VERSION) + ":"
+					+ bundle.getLastModified() + ";";
+			try {
+				md.update(entry.getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new AssertionError(e);
+			}
+		}
+		StringBuilder stamp = new StringBuilder();
+		for (byte b : md.digest())
+			stamp.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+					Character.forDigit(b & 0xf, 16));
+		installedBundlesStamp = stamp.toString();
+		synchronized (configs) {
+			for (BundleConfig config : configs.values()) {
+				synchronized (config) {
+					config.cache = null;
+					config.cacheOpened = false;
+				}
+			}
+		}
 	}
 
 	public void frameworkStop(BundleContext context) throws BundleException {
+		context.removeBundleListener(bundleListener);
+		WeavingStats.setSource(null);
+		if (Boolean.getBoolean(STATS_PROPERTY))
+			System.out.println("Kilim: pausable status cache hits "
+					+ Detector.getCacheHits() + ", misses "
+					+ Detector.getCacheMisses());
 	}
 
 	public byte[] processClass(String name, byte[] classbytes,
 			ClasspathEntry classpathEntry, BundleEntry entry,
 			ClasspathManager manager) {
-		try {
-			Object value = manager.getBaseData().getManifest()
-					.get(MANIFEST_KEY);
-			if (!(value instanceof String && Boolean
-					.parseBoolean((String) value)))
-				return null;
-		} catch (BundleException e) {
-			throw new AssertionError(e);
-		}
-		
+		BundleConfig config = getConfig(manager.getBaseData());
+		if (!config.isEnabled())
+			return null;
+
 //		System.out.println("InstrumentationHook.processClass(" + name + " )");
-		if (instrumentationContext != null
-				&& instrumentationContext.isBeingInstrumented(name)) {
+		InstrumentationContext parentContext = InstrumentationContext.current();
+		if (parentContext != null
+				&& parentContext.isBeingInstrumented(name)) {
 //			System.out.println("InstrumentationHook.processClass(" + name
 //					+ " ) throwing AlreadyBeingInstrumentedError");
 			// note: this exception is caught by MethodFlow
 			throw new AlreadyBeingInstrumentedError();
 		}
+		if (!config.includes(name) || !ClassScanner.mayNeedWeaving(classbytes))
+			return null;
+		if (ClassScanner.isWoven(classbytes)) {
+			// woven by kilim.tools.Weave; its state classes are in the bundle
+			addPrewovenStateClasses(name, classbytes, classpathEntry, manager
+					.getBaseData().getBundleID());
+			return null;
+		}
+		WeavingOptions weavingOptions = config.options;
+		WovenClassCache cache = getCache(config, manager.getBaseData());
+		if (cache != null) {
+			WovenClassCache.Entry cached = cache.get(name, classbytes,
+					weavingOptions);
+			if (cached != null) {
+				addStateClasses(manager.getBaseData().getBundleID(),
+						cached.stateClasses);
+				return cached.bytes;
+			}
+		}
 		String sn = manager.getBaseData().getSymbolicName();
 		// System.out.println("Instrumenting with Kilim: "
 		// + name
@@ -103,12 +223,16 @@ public class InstrumentationHook implements AdaptorHook, ClassLoadingHook,
 		if (bundles.length == 0)
 			throw new AssertionError("Could not find instrumented bundle: "
 					+ sn);
-		instrumentationContext = new InstrumentationContext(
-				instrumentationContext, bundles[0], name);
+		InstrumentationContext context = new InstrumentationContext(
+				parentContext, bundles[0], name);
+		InstrumentationContext.setCurrent(context);
 		try {
 			ClassWeaver weaver = new ClassWeaver(new ByteArrayInputStream(
-					classbytes), instrumentationContext);
+					classbytes), context, weavingOptions);
+			for (String method : weaver.getSplitMethods())
+				System.err.println("Kilim: split huge method " + method);
 			List<ClassInfo> infos = weaver.getClassInfos();
+			List<ClassInfo> stateClasses = new ArrayList<ClassInfo>(infos.size());
 			byte[] result = null;
 			String nameWithSlashes = name.replace('.', '/');
 			for (ClassInfo info : infos) {
@@ -117,9 +241,13 @@ public class InstrumentationHook implements AdaptorHook, ClassLoadingHook,
 				else {
 					// System.out.println("Adding additonal class: " +
 					// info.className);
-					additionalClasses.put(info.className, info.bytes);
+					stateClasses.add(info);
 				}
 			}
+			addStateClasses(manager.getBaseData().getBundleID(), stateClasses);
+			if (cache != null)
+				cache.put(name, classbytes, weavingOptions, result,
+						stateClasses);
 			if (result == null)
 				return null;
 //			if (name.endsWith(".ConstructControlFlowTraverser"))
@@ -132,7 +260,94 @@ public class InstrumentationHook implements AdaptorHook, ClassLoadingHook,
 			e.printStackTrace();
 			return null;
 		} finally {
-			instrumentationContext = instrumentationContext.parent;
+			InstrumentationContext.setCurrent(parentContext);
+		}
+	}
+
+	private void addStateClasses(long bundleId, List<ClassInfo> stateClasses) {
+		if (stateClasses.isEmpty())
+			return;
+		synchronized (stateClassesByBundle) {
+			Set<String> names = stateClassesByBundle.get(bundleId);
+			if (names == null) {
+				names = new HashSet<String>();
+				stateClassesByBundle.put(bundleId, names);
+			}
+			for (ClassInfo info : stateClasses) {
+				names.add(info.className);
+				if (!definedStateClasses.contains(info.className))
+					additionalClasses.put(info.className, info.bytes);
+			}
+		}
+	}
+
+	private void addPrewovenStateClasses(String name, byte[] classbytes,
+			ClasspathEntry classpathEntry, long bundleId) {
+		List<ClassInfo> stateClasses = new ArrayList<ClassInfo>();
+		for (String stateClass : ClassScanner.getStateClassRefs(classbytes)) {
+			byte[] bytes = additionalClasses.get(stateClass);
+			if (bytes == null) {
+				BundleEntry entry = classpathEntry.getBundleFile().getEntry(
+						stateClass + ".class");
+				try {
+					if (entry != null)
+						bytes = entry.getBytes();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (bytes == null) {
+				System.err.println("Kilim: " + name + " was woven ahead of time,"
+						+ " but its bundle lacks " + stateClass);
+				continue;
+			}
+			stateClasses.add(new ClassInfo(stateClass, bytes));
+		}
+		addStateClasses(bundleId, stateClasses);
+	}
+
+	/**
+	 * Drops the bytes of the state classes that only the given bundle's
+	 * classes used. Called when the bundle goes away or is about to be
+	 * woven anew.
+	 */
+	private void purgeStateClasses(long bundleId) {
+		synchronized (stateClassesByBundle) {
+			Set<String> names = stateClassesByBundle.remove(bundleId);
+			if (names == null)
+				return;
+			for (Set<String> used : stateClassesByBundle.values())
+				names.removeAll(used);
+			for (String name : names) {
+				additionalClasses.remove(name);
+				ClassWeaver.forgetStateClass(name);
+			}
+		}
+	}
+
+	private BundleConfig getConfig(BaseData data) {
+		synchronized (configs) {
+			BundleConfig config = configs.get(data);
+			if (config == null) {
+				config = BundleConfig.read(data);
+				configs.put(data, config);
+			}
+			return config;
+		}
+	}
+
+	private WovenClassCache getCache(BundleConfig config, BaseData data) {
+		String stamp = installedBundlesStamp;
+		if (stamp == null)
+			return null; // not started yet
+		synchronized (config) {
+			if (!config.cacheOpened) {
+				config.cache = WovenClassCache.open(data.getDataFile(""), data
+						.getVersion()
+						+ "|" + data.getLastModified() + "|" + stamp);
+				config.cacheOpened = true;
+			}
+			return config.cache;
 		}
 	}
 
@@ -147,6 +362,10 @@ public class InstrumentationHook implements AdaptorHook, ClassLoadingHook,
 			throw new AssertionError(be);
 		}
 		if (data.getBundle().getSymbolicName().equals("org.kilim.osgi.fibers")) {
+			synchronized (stateClassesByBundle) {
+				// the bundles that use them are woven anew for this loader
+				definedStateClasses.clear();
+			}
 			fibersPluginClassLoader = new DefaultClassLoader(parent, delegate,
 					domain, data, bundleclasspath) {
 				@Override
@@ -160,7 +379,19 @@ public class InstrumentationHook implements AdaptorHook, ClassLoadingHook,
 					if (klass != null) {
 						// System.out.println("Loading additonal class: " +
 						// name);
-						return defineClass(name, klass, 0, klass.length);
+						synchronized (this) {
+							// another thread may have got here first
+							result = findLoadedClass(name);
+							if (result != null)
+								return result;
+							result = defineClass(name, klass, 0, klass.length);
+							// the defined class is found from now on
+							synchronized (stateClassesByBundle) {
+								definedStateClasses.add(name.replace('.', '/'));
+								additionalClasses.remove(name.replace('.', '/'));
+							}
+							return result;
+						}
 					}
 					return super.loadClass(name);
 				}
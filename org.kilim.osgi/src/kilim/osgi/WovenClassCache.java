@@ -0,0 +1,215 @@
+package kilim.osgi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import kilim.analysis.ClassInfo;
+import kilim.analysis.ClassWeaver;
+import kilim.analysis.WeavingOptions;
+
+/**
+ * Remembers the outcome of weaving each class of one bundle in the bundle's
+ * data area, so that the next start of the framework can skip the analysis:
+ * the woven bytes plus the state classes they refer to, or the fact that the
+ * class didn't need weaving.
+ *
+ * An entry is used only if the original class bytes (compared by SHA-1 digest)
+ * and the weaving options are the same. The whole cache is dropped when its
+ * stamp changes: the weaver version, the bundle's version and modification
+ * time, and a fingerprint of all installed bundles (whether a class needs
+ * weaving depends on what its callees in other bundles look like).
+ */
+public class WovenClassCache {
+
+	/** Set to false to turn the cache off */
+	public static final String ENABLED_PROPERTY = "kilim.cache";
+
+	private static final String DIR_NAME = "kilim-cache";
+	private static final String STAMP_FILE = "stamp";
+	private static final int MAGIC = 0x4b574331; // "KWC1"
+
+	private final File dir;
+
+	public static class Entry {
+		/** null if the class doesn't need weaving */
+		public final byte[] bytes;
+		/** state classes referred to by bytes */
+		public final List<ClassInfo> stateClasses;
+
+		Entry(byte[] bytes, List<ClassInfo> stateClasses) {
+			this.bytes = bytes;
+			this.stateClasses = stateClasses;
+		}
+	}
+
+	/**
+	 * @param dataArea the bundle's data area (BaseData.getDataFile(""))
+	 * @param stamp anything that, once changed, invalidates the cache
+	 * @return null if caching is turned off or there is no data area.
+	 */
+	public static WovenClassCache open(File dataArea, String stamp) {
+		if (dataArea == null
+				|| !Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY,
+						"true")))
+			return null;
+		stamp = ClassWeaver.WEAVER_VERSION + "|" + stamp;
+		File dir = new File(dataArea, DIR_NAME);
+		File stampFile = new File(dir, STAMP_FILE);
+		try {
+			if (!stamp.equals(readStamp(stampFile))) {
+				clear(dir);
+				dir.mkdirs();
+				DataOutputStream out = new DataOutputStream(
+						new FileOutputStream(stampFile));
+				try {
+					out.writeUTF(stamp);
+				} finally {
+					out.close();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		return new WovenClassCache(dir);
+	}
+
+	private WovenClassCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * @return the cached outcome, or null if there is none for these bytes
+	 * and options.
+	 */
+	public Entry get(String className, byte[] classbytes,
+			WeavingOptions options) {
+		File file = fileFor(className);
+		if (!file.exists())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC)
+					return null;
+				if (!Arrays.equals(readBytes(in), digest(classbytes)))
+					return null;
+				if (!in.readUTF().equals(options.toString()))
+					return null;
+				if (!in.readBoolean())
+					return new Entry(null, new ArrayList<ClassInfo>(0));
+				byte[] bytes = readBytes(in);
+				int n = in.readInt();
+				List<ClassInfo> stateClasses = new ArrayList<ClassInfo>(n);
+				for (int i = 0; i < n; i++) {
+					String name = in.readUTF();
+					stateClasses.add(new ClassInfo(name, readBytes(in)));
+				}
+				return new Entry(bytes, stateClasses);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// truncated or otherwise unreadable; weave again and overwrite it
+			return null;
+		}
+	}
+
+	/**
+	 * @param bytes the woven class, or null if it didn't need weaving
+	 * @param stateClasses the other classes produced by the weaver
+	 */
+	public void put(String className, byte[] classbytes,
+			WeavingOptions options, byte[] bytes, List<ClassInfo> stateClasses) {
+		File file = fileFor(className);
+		// Write to a temporary file and rename it into place, so that a
+		// reader never sees a half written entry.
+		File tmp = new File(dir, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				writeBytes(out, digest(classbytes));
+				out.writeUTF(options.toString());
+				out.writeBoolean(bytes != null);
+				if (bytes != null) {
+					writeBytes(out, bytes);
+					out.writeInt(stateClasses.size());
+					for (ClassInfo info : stateClasses) {
+						out.writeUTF(info.className);
+						writeBytes(out, info.bytes);
+					}
+				}
+			} finally {
+				out.close();
+			}
+			file.delete();
+			if (!tmp.renameTo(file))
+				tmp.delete();
+		} catch (IOException e) {
+			e.printStackTrace();
+			tmp.delete();
+		}
+	}
+
+	private File fileFor(String className) {
+		return new File(dir, className + ".class");
+	}
+
+	private static String readStamp(File stampFile) {
+		if (!stampFile.exists())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(
+					stampFile));
+			try {
+				return in.readUTF();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static void clear(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files)
+			f.delete();
+	}
+
+	private static byte[] digest(byte[] bytes) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes)
+			throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
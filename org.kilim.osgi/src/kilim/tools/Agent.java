@@ -0,0 +1,209 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import kilim.analysis.ClassInfo;
+import kilim.analysis.ClassLoaderResolver;
+import kilim.analysis.ClassScanner;
+import kilim.analysis.ClassWeaver;
+import kilim.analysis.WeavingOptions;
+import kilim.osgi.InstrumentationContext;
+
+/**
+ * Weaves classes as they are loaded by a plain JVM, for running Kilim code
+ * outside of OSGi:
+ * <pre>
+ *    java -javaagent:org.kilim.osgi.jar[=weaving options] -cp asm-all-2.2.3.jar:... Main
+ * </pre>
+ * Pausable methods are looked up in the class bytes seen by the loader of
+ * the class being woven (see ClassLoaderResolver). Classes of different
+ * loaders, or loaded by different threads, are woven concurrently.
+ *
+ * The state classes that woven code refers to are written to a directory
+ * that joins the system class path through one small jar, appended (needs
+ * Java 6) when the first state class is published. There they are found
+ * along with kilim.State by every loader that delegates to the system one.
+ */
+public class Agent implements ClassFileTransformer {
+    /** Kilim's own classes and the JDK's never need weaving */
+    private static final String[] SKIPPED_PACKAGES = {
+        "kilim/analysis/", "kilim/osgi/", "kilim/tools/", "kilim/states/",
+        "org/objectweb/asm/", "java/", "javax/", "sun/", "com/sun/", "jdk/"
+    };
+
+    private final Instrumentation instrumentation;
+    private final WeavingOptions  options;
+
+    private final Map<ClassLoader, ClassLoaderResolver> resolvers =
+        new WeakHashMap<ClassLoader, ClassLoaderResolver>();
+
+    /** State classes already on the system class path */
+    private final HashSet<String> publishedStateClasses = new HashSet<String>();
+
+    /** Where state classes are published; null until the first one is */
+    private File stateClassDir;
+
+    public Agent(Instrumentation instrumentation, WeavingOptions options) {
+        this.instrumentation = instrumentation;
+        this.options = options;
+    }
+
+    public static void premain(String agentArgs, Instrumentation inst) {
+        WeavingOptions options = agentArgs == null ? WeavingOptions.getDefault()
+                : WeavingOptions.parse(agentArgs);
+        inst.addTransformer(new Agent(inst, options));
+    }
+
+    public byte[] transform(ClassLoader loader, String className,
+            Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+            byte[] classfileBuffer) {
+        if (loader == null || className == null || classBeingRedefined != null
+                || isSkipped(className)) {
+            return null;
+        }
+        // The weaver reads class files rather than loading classes; whatever
+        // is loaded while it runs is the weaver's own.
+        if (InstrumentationContext.current() != null) {
+            return null;
+        }
+        if (!ClassScanner.mayNeedWeaving(classfileBuffer) || ClassScanner.isWoven(classfileBuffer)) {
+            return null;
+        }
+        InstrumentationContext context = new InstrumentationContext(null,
+                resolverFor(loader), className.replace('/', '.'));
+        InstrumentationContext.setCurrent(context);
+        try {
+            ClassWeaver weaver = new ClassWeaver(new ByteArrayInputStream(classfileBuffer),
+                    context, options);
+            for (String method : weaver.getSplitMethods()) {
+                System.err.println("Kilim: split huge method " + method);
+            }
+            byte[] result = null;
+            List<ClassInfo> stateClasses = new ArrayList<ClassInfo>();
+            for (ClassInfo ci : weaver.getClassInfos()) {
+                if (ci.className.equals(className)) {
+                    result = ci.bytes;
+                } else {
+                    stateClasses.add(ci);
+                }
+            }
+            if (result != null) {
+                publish(stateClasses);
+            }
+            return result;
+        } catch (Throwable t) {
+            System.err.println("Kilim: error weaving " + className.replace('/', '.'));
+            t.printStackTrace();
+            return null;
+        } finally {
+            InstrumentationContext.setCurrent(null);
+        }
+    }
+
+    private static boolean isSkipped(String className) {
+        for (String pkg : SKIPPED_PACKAGES) {
+            if (className.startsWith(pkg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ClassLoaderResolver resolverFor(ClassLoader loader) {
+        synchronized (resolvers) {
+            ClassLoaderResolver resolver = resolvers.get(loader);
+            if (resolver == null) {
+                resolver = new ClassLoaderResolver(loader);
+                resolvers.put(loader, resolver);
+            }
+            return resolver;
+        }
+    }
+
+    /**
+     * Makes the new state classes loadable before the woven class that
+     * needs them is returned.
+     */
+    private synchronized void publish(List<ClassInfo> stateClasses) throws IOException {
+        for (ClassInfo ci : stateClasses) {
+            if (publishedStateClasses.contains(ci.className)) {
+                continue;
+            }
+            if (stateClassDir == null) {
+                stateClassDir = openStateClassDir();
+            }
+            File file = new File(stateClassDir, ci.className + ".class");
+            File dir = file.getParentFile();
+            if (!dir.isDirectory()) {
+                mkdirs(dir);
+            }
+            file.deleteOnExit();
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(ci.bytes);
+            } finally {
+                out.close();
+            }
+            publishedStateClasses.add(ci.className);
+        }
+    }
+
+    /**
+     * Appends a jar to the system class path whose only content is a
+     * Class-Path entry for a directory next to it. The class path looks
+     * for files in a directory anew on every lookup, so classes written
+     * there later are found without appending anything else.
+     */
+    private File openStateClassDir() throws IOException {
+        File root = File.createTempFile("kilim-states", "");
+        if (!root.delete() || !root.mkdir()) {
+            throw new IOException("Could not create directory " + root);
+        }
+        root.deleteOnExit();
+        File classes = new File(root, "classes");
+        mkdirs(classes);
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, classes.getName() + "/");
+        File jar = new File(root, "kilim-states.jar");
+        jar.deleteOnExit();
+        new JarOutputStream(new FileOutputStream(jar), manifest).close();
+        instrumentation.appendToSystemClassLoaderSearch(new JarFile(jar));
+        return classes;
+    }
+
+    /** Like File.mkdirs(), but each new directory is deleted on exit */
+    private static void mkdirs(File dir) throws IOException {
+        File parent = dir.getParentFile();
+        if (parent != null && !parent.isDirectory()) {
+            mkdirs(parent);
+        }
+        if (!dir.mkdir() && !dir.isDirectory()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        // registered before its contents, so deleted after them
+        dir.deleteOnExit();
+    }
+}
@@ -0,0 +1,215 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kilim.analysis.ClassInfo;
+import kilim.analysis.ClassLoaderResolver;
+import kilim.analysis.ClassResolver;
+import kilim.analysis.ClassScanner;
+import kilim.analysis.ClassWeaver;
+import kilim.analysis.FileLister;
+import kilim.analysis.WeavingOptions;
+import kilim.osgi.InstrumentationContext;
+
+/**
+ * Weaves classes ahead of time, so that they needn't be analyzed when they
+ * are loaded. Takes class names (looked up on the class path), directories
+ * and jars, and writes the woven classes and the kilim/states classes they
+ * use under the output directory. Classes that need no weaving are not
+ * written.
+ *
+ * Woven classes are marked with a class level @pausable annotation;
+ * InstrumentationHook loads them as they are and picks their state classes
+ * from the same bundle. So put the output (states included) in front of the
+ * original classes when packaging the bundle.
+ *
+ * [run]  java kilim.tools.Weave -d ./wclasses [-cp classpath] [-j threads]
+ *             [-o weaving options] (class | dir | jar)...
+ */
+public class Weave {
+    private final File                outDir;
+    private final ClassResolver       resolver;
+    private final WeavingOptions      options;
+
+    private final ConcurrentHashMap<String, Boolean> writtenStateClasses = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicInteger       numWoven  = new AtomicInteger();
+    private final AtomicInteger       numErrors = new AtomicInteger();
+
+    public Weave(File outDir, ClassResolver resolver, WeavingOptions options) {
+        this.outDir = outDir;
+        this.resolver = resolver;
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String outDir = null;
+        String classpath = "";
+        int threads = Runtime.getRuntime().availableProcessors();
+        WeavingOptions options = WeavingOptions.getDefault();
+        List<String> inputs = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-d") && i + 1 < args.length) {
+                outDir = args[++i];
+            } else if (arg.equals("-cp") && i + 1 < args.length) {
+                classpath = args[++i];
+            } else if (arg.equals("-j") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (arg.equals("-o") && i + 1 < args.length) {
+                options = WeavingOptions.parse(args[++i]);
+            } else if (arg.startsWith("-")) {
+                usage();
+            } else {
+                inputs.add(arg);
+            }
+        }
+        if (outDir == null || inputs.isEmpty()) {
+            usage();
+        }
+
+        // The weaver looks at the inputs and the class path to find out
+        // which methods are pausable.
+        List<URL> urls = new ArrayList<URL>();
+        for (String input : inputs) {
+            if (isDirOrJar(input)) {
+                urls.add(new File(input).toURI().toURL());
+            }
+        }
+        for (String entry : classpath.split(File.pathSeparator)) {
+            if (entry.length() > 0) {
+                urls.add(new File(entry).toURI().toURL());
+            }
+        }
+        ClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]),
+                Weave.class.getClassLoader());
+
+        final Weave weave = new Weave(new File(outDir), new ClassLoaderResolver(loader), options);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (String input : inputs) {
+            if (isDirOrJar(input)) {
+                String dirPrefix = input.endsWith(".jar") ? ""
+                        : new File(input).getCanonicalPath() + File.separator;
+                for (FileLister.Entry fe : new FileLister(input)) {
+                    String fileName = fe.getFileName();
+                    if (!fileName.endsWith(".class")) continue;
+                    String name = fileName.substring(dirPrefix.length(), fileName.length() - 6)
+                            .replace(File.separatorChar, '/');
+                    weave.submit(executor, name, readFully(fe.getInputStream()));
+                }
+            } else {
+                String name = input.replace('.', '/');
+                InputStream is = loader.getResourceAsStream(name + ".class");
+                if (is == null) {
+                    System.err.println("Class not found: " + input);
+                    weave.numErrors.incrementAndGet();
+                    continue;
+                }
+                weave.submit(executor, name, readFully(is));
+            }
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        System.out.println("Wove " + weave.numWoven + " classes, "
+                + weave.writtenStateClasses.size() + " state classes into " + outDir);
+        System.exit(weave.numErrors.get() == 0 ? 0 : 1);
+    }
+
+    private void submit(ExecutorService executor, final String name, final byte[] bytes) {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    weave(name, bytes);
+                } catch (Throwable t) {
+                    System.err.println("Error weaving " + name.replace('/', '.') + ": " + t);
+                    numErrors.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Weaves one class and writes the result, if it needed weaving.
+     * May be called by several threads at once.
+     *
+     * @param name internal name of the class
+     */
+    public void weave(String name, byte[] bytes) throws IOException {
+        if (ClassScanner.isWoven(bytes) || !ClassScanner.mayNeedWeaving(bytes)) {
+            return;
+        }
+        InstrumentationContext context = new InstrumentationContext(null, resolver,
+                name.replace('/', '.'));
+        InstrumentationContext.setCurrent(context);
+        try {
+            ClassWeaver weaver = new ClassWeaver(new ByteArrayInputStream(bytes), context, options);
+            for (String method : weaver.getSplitMethods()) {
+                System.out.println("Split huge method " + method);
+            }
+            for (ClassInfo ci : weaver.getClassInfos()) {
+                if (ci.className.equals(name)) {
+                    numWoven.incrementAndGet();
+                } else if (writtenStateClasses.putIfAbsent(ci.className, Boolean.TRUE) != null) {
+                    continue;
+                }
+                write(ci);
+            }
+        } finally {
+            InstrumentationContext.setCurrent(null);
+        }
+    }
+
+    private void write(ClassInfo ci) throws IOException {
+        File file = new File(outDir, ci.className.replace('/', File.separatorChar) + ".class");
+        file.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(ci.bytes);
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static boolean isDirOrJar(String input) {
+        return input.endsWith(".jar") || new File(input).isDirectory();
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                bos.write(buf, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java kilim.tools.Weave -d <output dir> [-cp <class path>]"
+                + " [-j <threads>] [-o <weaving options>] (class | dir | jar)...");
+        System.exit(1);
+    }
+}